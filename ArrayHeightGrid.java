@@ -0,0 +1,35 @@
+package tides;
+
+/**
+ * This class is a HeightGrid backed by an in-memory 2D array, which is how 
+ * Terrain stores its heights.
+ */
+public final class ArrayHeightGrid implements HeightGrid {
+    private final double[][] heights;
+
+    public ArrayHeightGrid(double[][] heights) {
+        this.heights = heights;
+    }
+
+    /**
+     * @return double[][], the array backing this grid (not a copy)
+     */
+    public double[][] heights() {
+        return heights;
+    }
+
+    @Override
+    public int rows() {
+        return heights.length;
+    }
+
+    @Override
+    public int cols() {
+        return heights.length == 0 ? 0 : heights[0].length;
+    }
+
+    @Override
+    public double height(int row, int col) {
+        return heights[row][col];
+    }
+}
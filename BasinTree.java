@@ -0,0 +1,423 @@
+package tides;
+
+import java.util.*;
+
+/**
+ * This class splits a terrain into basins and records the heights at which 
+ * water spills from one basin into the next, independent of where the water 
+ * sources are.
+ * 
+ * It is built once by adding cells from lowest to highest and joining each 
+ * one to its lower 4-connected neighbors. A cell with no lower neighbor is 
+ * the bottom of a new basin; a cell that touches several basins is the 
+ * saddle they spill over, and is recorded as a new basin node whose children 
+ * are the basins it joined. A basin node therefore stands for one connected 
+ * lake that forms once the water reaches its spill height.
+ * 
+ * Water poured in at a source at a given height fills exactly the largest 
+ * basin around the source whose spill height is at or below the water, up to 
+ * that height. Cells are laid out so each such region is one contiguous 
+ * range, so floods for any set of sources - including new or moved ones - 
+ * are answered by finding one basin per source, without flooding the grid.
+ */
+public final class BasinTree {
+    private final HeightGrid terrain;
+    private final int cols;
+
+    /* The smallest basin containing each cell, indexed by row * cols + col. */
+    private final int[] cellNode;
+
+    /* Basins: spill height, saddle cell (-1 for a basin bottom), parent (-1 for none), jump pointer. */
+    private int nodes = 0;
+    private double[] spillHeight = new double[64];
+    private int[] saddle = new int[64];
+    private int[] parent = new int[64];
+    private int[] jump;
+
+    /*
+     * Cells in layout order. Each basin covers order[first[node] .. end[node]),
+     * which holds its children's cells and then its own cells (the ones that 
+     * joined it directly) from lowest to highest, starting at own[node].
+     */
+    private int[] order;
+    private int[] first, own, end;
+
+    /**
+     * A point where water spills from one basin into another.
+     */
+    public static final class SpillPoint {
+        public final GridLocation saddle;
+        public final double height;
+
+        SpillPoint(GridLocation saddle, double height) {
+            this.saddle = saddle;
+            this.height = height;
+        }
+
+        @Override
+        public String toString() {
+            return "spills over " + saddle + " at " + height;
+        }
+    }
+
+    private BasinTree(HeightGrid terrain, int cells) {
+        this.terrain = terrain;
+        this.cols = terrain.cols();
+        this.cellNode = new int[cells];
+    }
+
+    /**
+     * Builds the basins of a terrain.
+     * 
+     * @param terrain heights of every cell
+     * @return BasinTree, the basins and spill points of the terrain
+     */
+    public static BasinTree build(HeightGrid terrain) {
+        int rows = terrain.rows();
+        int cols = terrain.cols();
+        if ((long) rows * cols > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Grid is too large: " + rows + " x " + cols);
+
+        int cells = rows * cols;
+        var heights = new double[cells];
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                heights[row * cols + col] = terrain.height(row, col);
+            }
+        }
+        int[] ascending = CellSort.ascending(heights);
+
+        var tree = new BasinTree(terrain, cells);
+        var uf = new int[cells]; // union-find over cells; -1 for cells not added yet
+        Arrays.fill(uf, -1);
+        var rootNode = new int[cells]; // the basin whose union-find root is this cell
+        var touched = new int[4];
+
+        for (int cell : ascending) {
+            int row = cell / cols;
+            int col = cell % cols;
+
+            /* Find the distinct basins this cell touches. */
+            int touching = 0;
+            for (int d = 0; d < 4; d++) {
+                int r = row + (d == 0 ? -1 : d == 1 ? 1 : 0);
+                int c = col + (d == 2 ? -1 : d == 3 ? 1 : 0);
+                if (r < 0 || r >= rows || c < 0 || c >= cols || uf[r * cols + c] < 0)
+                    continue;
+
+                int root = find(uf, r * cols + c);
+                boolean seen = false;
+                for (int k = 0; k < touching; k++) {
+                    seen |= touched[k] == root;
+                }
+                if (!seen)
+                    touched[touching++] = root;
+            }
+
+            int node;
+            if (touching == 1) {
+                node = rootNode[touched[0]];
+            } else {
+                node = tree.newNode(heights[cell], touching == 0 ? -1 : cell);
+                for (int k = 0; k < touching; k++) {
+                    tree.parent[rootNode[touched[k]]] = node;
+                }
+            }
+
+            uf[cell] = cell;
+            for (int k = 0; k < touching; k++) {
+                uf[touched[k]] = cell;
+            }
+            rootNode[cell] = node;
+            tree.cellNode[cell] = node;
+        }
+
+        tree.layOut(ascending);
+        tree.buildJumps();
+        return tree;
+    }
+
+    /* Finds the root of a cell in the union-find, halving the path as it goes. */
+    private static int find(int[] uf, int cell) {
+        while (uf[cell] != cell) {
+            uf[cell] = uf[uf[cell]];
+            cell = uf[cell];
+        }
+        return cell;
+    }
+
+    private int newNode(double height, int saddleCell) {
+        if (nodes == parent.length) {
+            spillHeight = Arrays.copyOf(spillHeight, nodes * 2);
+            saddle = Arrays.copyOf(saddle, nodes * 2);
+            parent = Arrays.copyOf(parent, nodes * 2);
+        }
+        spillHeight[nodes] = height;
+        saddle[nodes] = saddleCell;
+        parent[nodes] = -1;
+        return nodes++;
+    }
+
+    /* Places every basin's cells in one contiguous range of "order", children first. */
+    private void layOut(int[] ascending) {
+        spillHeight = Arrays.copyOf(spillHeight, nodes);
+        saddle = Arrays.copyOf(saddle, nodes);
+        parent = Arrays.copyOf(parent, nodes);
+
+        /* Children of each basin, and each basin's own cells from lowest to highest. */
+        var childStart = new int[nodes + 1];
+        for (int node = 0; node < nodes; node++) {
+            if (parent[node] >= 0)
+                childStart[parent[node] + 1]++;
+        }
+        var ownStart = new int[nodes + 1];
+        for (int node : cellNode) {
+            ownStart[node + 1]++;
+        }
+        for (int node = 0; node < nodes; node++) {
+            childStart[node + 1] += childStart[node];
+            ownStart[node + 1] += ownStart[node];
+        }
+
+        var children = new int[Math.max(0, childStart[nodes])];
+        var fill = Arrays.copyOf(childStart, nodes);
+        for (int node = 0; node < nodes; node++) {
+            if (parent[node] >= 0)
+                children[fill[parent[node]]++] = node;
+        }
+        var ownCells = new int[cellNode.length];
+        fill = Arrays.copyOf(ownStart, nodes);
+        for (int cell : ascending) {
+            ownCells[fill[cellNode[cell]]++] = cell;
+        }
+
+        /* Depth-first from each root, numbering cells as each basin finishes. */
+        order = new int[cellNode.length];
+        first = new int[nodes];
+        own = new int[nodes];
+        end = new int[nodes];
+        var stack = new int[nodes];
+        var nextChild = Arrays.copyOf(childStart, nodes);
+        int position = 0;
+
+        for (int root = 0; root < nodes; root++) {
+            if (parent[root] >= 0)
+                continue;
+
+            int depth = 0;
+            stack[depth++] = root;
+            first[root] = position;
+            while (depth > 0) {
+                int node = stack[depth - 1];
+                if (nextChild[node] < childStart[node + 1]) {
+                    int child = children[nextChild[node]++];
+                    first[child] = position;
+                    stack[depth++] = child;
+                    continue;
+                }
+
+                own[node] = position;
+                for (int i = ownStart[node]; i < ownStart[node + 1]; i++) {
+                    order[position++] = ownCells[i];
+                }
+                end[node] = position;
+                depth--;
+            }
+        }
+    }
+
+    /* Jump pointers for O(log n) ancestor searches; see IslandMergeTree.buildJumps. */
+    private void buildJumps() {
+        jump = new int[nodes];
+        var depth = new int[nodes];
+        for (int node = nodes - 1; node >= 0; node--) {
+            int p = parent[node];
+            if (p < 0) {
+                jump[node] = node;
+                continue;
+            }
+
+            depth[node] = depth[p] + 1;
+            int j = jump[p];
+            if (depth[p] - depth[j] == depth[j] - depth[jump[j]])
+                jump[node] = jump[j];
+            else
+                jump[node] = p;
+        }
+    }
+
+    /**
+     * @return int, the number of basins, counting every lake formed by joining smaller ones
+     */
+    public int size() {
+        return nodes;
+    }
+
+    /**
+     * @param cell location
+     * @return int, the smallest basin containing the cell
+     */
+    public int basinOf(GridLocation cell) {
+        return cellNode[cell.row * cols + cell.col];
+    }
+
+    /**
+     * @param basin in the tree
+     * @return SpillPoint, where this basin's lake first forms, or null for a basin 
+     *         bottom, which fills from its lowest cell
+     */
+    public SpillPoint spillPoint(int basin) {
+        int cell = saddle[basin];
+        return cell < 0 ? null : new SpillPoint(new GridLocation(cell / cols, cell % cols), spillHeight[basin]);
+    }
+
+    /**
+     * @param basin in the tree
+     * @return int, the larger basin this one spills into, or -1 if none
+     */
+    public int parent(int basin) {
+        return parent[basin];
+    }
+
+    /* Finds the largest basin around a cell that has filled at a water height. */
+    private int filledBasin(int cell, double height) {
+        int node = cellNode[cell];
+        while (parent[node] >= 0 && spillHeight[parent[node]] <= height) {
+            node = spillHeight[jump[node]] <= height ? jump[node] : parent[node];
+        }
+        return node;
+    }
+
+    /* Finds where a filled basin's range ends at a water height: its own cells above the water are dry. */
+    private int floodedEnd(int node, double height) {
+        int low = own[node], high = end[node];
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int cell = order[mid];
+            if (terrain.height(cell / cols, cell % cols) <= height)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /*
+     * The positions in layout order that water at a height poured in at one 
+     * source floods, packed as (first << 32) | end; empty if the source is dry. 
+     * Ranges for different sources are always nested or disjoint.
+     */
+    long floodedRange(GridLocation source, double height) {
+        if (terrain.height(source.row, source.col) > height)
+            return 0;
+        int basin = filledBasin(source.row * cols + source.col, height);
+        return (long) first[basin] << 32 | floodedEnd(basin, height);
+    }
+
+    /* The cell at a position in layout order, as row * cols + col. */
+    int cellAt(int position) {
+        return order[position];
+    }
+
+    /* The flooded basin for each source that is under water, without duplicates. */
+    private int[] floodedBasins(GridLocation[] sources, double height) {
+        var basins = new int[sources.length];
+        int count = 0;
+        for (GridLocation source : sources) {
+            if (terrain.height(source.row, source.col) > height)
+                continue;
+
+            int basin = filledBasin(source.row * cols + source.col, height);
+            boolean seen = false;
+            for (int i = 0; i < count; i++) {
+                seen |= basins[i] == basin;
+            }
+            if (!seen)
+                basins[count++] = basin;
+        }
+        return Arrays.copyOf(basins, count);
+    }
+
+    /**
+     * Floods the terrain from any set of sources, without flooding cell by 
+     * cell. Gives the same result as RisingTides.floodedMask for a terrain 
+     * with those sources.
+     * 
+     * @param sources of water
+     * @param height of the water
+     * @return FloodMask, where flooded cells are set
+     */
+    public FloodMask floodedMask(GridLocation[] sources, double height) {
+        FloodMask flooded = new FloodMask(terrain.rows(), cols);
+        for (int basin : floodedBasins(sources, height)) {
+            int stop = floodedEnd(basin, height);
+            for (int i = first[basin]; i < stop; i++) {
+                flooded.set(order[i] / cols, order[i] % cols);
+            }
+        }
+        return flooded;
+    }
+
+    /**
+     * Counts the flooded cells for any set of sources, in time that depends 
+     * on the number of sources rather than the size of the terrain.
+     * 
+     * @param sources of water
+     * @param height of the water
+     * @return long, the number of flooded cells
+     */
+    public long floodedCells(GridLocation[] sources, double height) {
+        long flooded = 0;
+        for (int basin : floodedBasins(sources, height)) {
+            flooded += floodedEnd(basin, height) - first[basin];
+        }
+        return flooded;
+    }
+
+    /**
+     * Finds the lowest water height at which water poured in at a source 
+     * reaches a cell.
+     * 
+     * @param source where the water comes in
+     * @param cell location
+     * @return double, the lowest water height that floods the cell from that source
+     */
+    public double floodHeight(GridLocation source, GridLocation cell) {
+        double height = Math.max(terrain.height(source.row, source.col), terrain.height(cell.row, cell.col));
+        int common = commonBasin(source, cell);
+        if (common != cellNode[source.row * cols + source.col] || common != cellNode[cell.row * cols + cell.col])
+            height = Math.max(height, spillHeight[common]);
+        return height;
+    }
+
+    /**
+     * Explains why water from a source reaches a cell: the saddle it has to 
+     * spill over on the way.
+     * 
+     * @param source where the water comes in
+     * @param cell location
+     * @return SpillPoint, the highest saddle between them, or null if both are in 
+     *         the same basin and the water only has to rise over the cells themselves
+     */
+    public SpillPoint spillPointBetween(GridLocation source, GridLocation cell) {
+        int common = commonBasin(source, cell);
+        if (common == cellNode[source.row * cols + source.col] && common == cellNode[cell.row * cols + cell.col])
+            return null;
+        return spillPoint(common);
+    }
+
+    /* Finds the smallest basin containing both cells. */
+    private int commonBasin(GridLocation one, GridLocation two) {
+        int node = cellNode[one.row * cols + one.col];
+        int other = cellNode[two.row * cols + two.col];
+        while (!contains(node, other)) {
+            node = contains(jump[node], other) ? parent[node] : jump[node];
+        }
+        return node;
+    }
+
+    /* Whether a basin is the other basin or one of its ancestors. */
+    private boolean contains(int basin, int other) {
+        return first[basin] <= first[other] && end[other] <= end[basin];
+    }
+}
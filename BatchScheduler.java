@@ -0,0 +1,300 @@
+package tides;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class runs queries against many terrains without holding more of
+ * them in memory at once than a budget allows.
+ *
+ * Queries are grouped by terrain. When the batch runs, each terrain's size
+ * is read from its header and its footprint estimated from that, and the
+ * terrains are started smallest first, as many at a time as there are
+ * threads and the budget has room for, so the small ones finish early. A
+ * terrain larger than the whole budget still runs, but alone. Each terrain
+ * is loaded (through its TerrainIndex) once, every query for it is answered
+ * against that one RisingTides, and then it is let go.
+ *
+ * The RisingTides share one ResultCache, which takes an eighth of the budget
+ * (at most ResultCache.DEFAULT_MAX_BYTES) off the top; the terrains share
+ * the rest. Sidecar indexes are written next to the terrains unless
+ * setWriteIndexes(false) is called, in which case existing ones are still
+ * used but the directory is left as it is.
+ */
+public final class BatchScheduler {
+    /*
+     * Estimated bytes per cell at the peak of opening and querying a terrain
+     * without an up-to-date sidecar: the heights, flood levels and island
+     * merge tree, plus the build's work arrays. Counting arrays, the merge
+     * tree's node arrays and the flood search's heap grow by doubling, which
+     * puts the worst case at about 57 bytes per cell. Measured by the
+     * smallest heap that opens a generated terrain and runs main's queries,
+     * the peak grew by 45 bytes per cell from 1M to 4M cells.
+     */
+    public static final long BYTES_PER_CELL = 64;
+
+    /*
+     * The same, for terrains opened without writing sidecars: the larger of
+     * loading an existing sidecar (measured 30 bytes per cell) and loading
+     * the text and building only the indexes the queries need (18).
+     */
+    public static final long READ_ONLY_BYTES_PER_CELL = 40;
+
+    /* The share of the budget given to the result cache, as a divisor. */
+    private static final int CACHE_SHARE = 8;
+
+    /**
+     * A question to ask of a terrain.
+     */
+    public interface Query<T> {
+        public T answer(RisingTides risingTides) throws Exception;
+    }
+
+    /* One query and the future its answer goes to. */
+    private static final class Task<T> {
+        final Query<T> query;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Task(Query<T> query) {
+            this.query = query;
+        }
+
+        void run(RisingTides risingTides) {
+            try {
+                result.complete(query.answer(risingTides));
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        void fail(Throwable e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    /* Every query for one terrain. */
+    private static final class Job {
+        final File file;
+        final List<Task<?>> tasks = new ArrayList<>();
+        long bytes;
+
+        Job(File file) {
+            this.file = file;
+        }
+
+        void run(ResultCache cache, boolean writeIndex) {
+            long start = System.nanoTime();
+            RisingTides risingTides;
+            try {
+                TerrainIndex index = writeIndex ? TerrainIndex.open(file, null) : TerrainIndex.openReadOnly(file, null);
+                risingTides = index.risingTides();
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+                return;
+            }
+            risingTides.useCache(cache);
+            for (Task<?> task : tasks) {
+                task.run(risingTides);
+            }
+            risingTides.clearCache(); // its results are no use to the other terrains
+            Metrics.counter("batch.queries").add(tasks.size());
+            Metrics.histogram("batch.job").recordSince(start);
+        }
+
+        void fail(Throwable e) {
+            for (Task<?> task : tasks) {
+                task.fail(e);
+            }
+            Metrics.counter("batch.failed").increment();
+        }
+    }
+
+    private final long maxBytes;
+    private final int threads;
+    private final ResultCache cache;
+    private volatile boolean writeIndexes = true;
+
+    /* Queries not yet run, by terrain, in the order the terrains were first asked about. */
+    private final Map<File, Job> pending = new LinkedHashMap<>();
+
+    private int running = 0;
+    private long reservedBytes = 0;
+    private long peakReservedBytes = 0;
+
+    /**
+     * @param maxBytes estimated bytes the terrains being worked on may take up at once
+     * @param threads most terrains to work on at once
+     */
+    public BatchScheduler(long maxBytes, int threads) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("Memory budget must be positive: " + maxBytes);
+        if (threads <= 0)
+            throw new IllegalArgumentException("Need at least one thread: " + threads);
+        this.maxBytes = maxBytes;
+        this.threads = threads;
+        this.cache = new ResultCache(Math.min(ResultCache.DEFAULT_MAX_BYTES, maxBytes / CACHE_SHARE));
+    }
+
+    /**
+     * Sets whether terrains without an up-to-date sidecar index get one
+     * written next to them, which makes the next batch over them faster.
+     * Either way, existing sidecars are used.
+     *
+     * @param write true (the default) to write sidecars, false to leave the terrains' directories alone
+     */
+    public void setWriteIndexes(boolean write) {
+        writeIndexes = write;
+    }
+
+    /**
+     * Estimates the memory a terrain takes up while it is worked on.
+     *
+     * @param terrainFile the .terrain file
+     * @param writeIndex whether it will be opened so that its sidecar is built and written if need be
+     * @return long, the estimated bytes
+     * @throws IOException if the terrain's header can't be read
+     */
+    public static long estimateBytes(File terrainFile, boolean writeIndex) throws IOException {
+        int[] size = TerrainLoader.readSize(terrainFile, null);
+        return (long) size[0] * size[1] * (writeIndex ? BYTES_PER_CELL : READ_ONLY_BYTES_PER_CELL);
+    }
+
+    /**
+     * Adds a query to the batch. It is answered when the batch runs.
+     *
+     * @param terrainFile the .terrain file to ask about
+     * @param query the question
+     * @return CompletableFuture, which gets the answer, or what went wrong
+     */
+    public synchronized <T> CompletableFuture<T> submit(File terrainFile, Query<T> query) {
+        var task = new Task<T>(query);
+        pending.computeIfAbsent(terrainFile, Job::new).tasks.add(task);
+        return task.result;
+    }
+
+    /**
+     * Answers every query submitted so far, returning once all of them are
+     * answered. Queries for terrains that can't be read fail rather than
+     * stopping the batch.
+     *
+     * @throws InterruptedException if interrupted while waiting; queries not yet started then fail
+     */
+    public void run() throws InterruptedException {
+        List<Job> jobs;
+        synchronized (this) {
+            jobs = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+
+        /* Estimate each terrain from its header, then put the smallest first. */
+        boolean writeIndex = writeIndexes;
+        for (Iterator<Job> it = jobs.iterator(); it.hasNext();) {
+            Job job = it.next();
+            try {
+                job.bytes = estimateBytes(job.file, writeIndex);
+            } catch (IOException | RuntimeException e) {
+                job.fail(e);
+                it.remove();
+            }
+        }
+        jobs.sort(Comparator.comparingLong((Job job) -> job.bytes));
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, jobs.size())));
+        int started = 0;
+        try {
+            for (Job job : jobs) {
+                admit(job.bytes);
+                started++;
+                pool.execute(() -> {
+                    try {
+                        job.run(cache, writeIndex);
+                    } finally {
+                        release(job.bytes);
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            var cancelled = new CancellationException("Batch interrupted.");
+            for (Job job : jobs.subList(started, jobs.size())) {
+                job.fail(cancelled);
+            }
+            throw e;
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /* Waits until there's a thread free and room in the budget left by the cache (or nothing else running), then reserves it. */
+    private synchronized void admit(long bytes) throws InterruptedException {
+        while (running == threads || (running > 0 && cache.maxBytes() + reservedBytes + bytes > maxBytes)) {
+            wait();
+        }
+        running++;
+        reservedBytes += bytes;
+        peakReservedBytes = Math.max(peakReservedBytes, reservedBytes);
+        Metrics.counter("batch.jobs").increment();
+    }
+
+    private synchronized void release(long bytes) {
+        running--;
+        reservedBytes -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * @return long, the most estimated bytes reserved at once so far, counting the result cache's budget
+     */
+    public synchronized long peakReservedBytes() {
+        return cache.maxBytes() + peakReservedBytes;
+    }
+
+    /**
+     * Reports on every terrain in a directory at a water height, then dumps
+     * the metrics recorded.
+     *
+     * Usage: BatchScheduler [directory] [memory budget in MB] [water height] [threads] [write indexes, true or false]
+     *
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) throws InterruptedException {
+        File directory = new File(args.length > 0 ? args[0] : "terrains");
+        long maxBytes = args.length > 1 ? Long.parseLong(args[1]) << 20 : Runtime.getRuntime().maxMemory() / 2;
+        double height = args.length > 2 ? Double.parseDouble(args[2]) : 0.0;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        boolean writeIndexes = args.length > 4 ? Boolean.parseBoolean(args[4]) : true;
+
+        File[] files = directory.listFiles((File dir, String name) -> name.endsWith(".terrain"));
+        if (files == null) {
+            System.err.println("Not a directory: " + directory);
+            return;
+        }
+        Arrays.sort(files, (File one, File two) -> one.getName().compareTo(two.getName()));
+
+        var scheduler = new BatchScheduler(maxBytes, threads);
+        scheduler.setWriteIndexes(writeIndexes);
+        var land = new ArrayList<CompletableFuture<Integer>>();
+        var lost = new ArrayList<CompletableFuture<Integer>>();
+        var islands = new ArrayList<CompletableFuture<Integer>>();
+        for (File file : files) {
+            land.add(scheduler.submit(file, (RisingTides rt) -> rt.totalVisibleLand(height)));
+            lost.add(scheduler.submit(file, (RisingTides rt) -> rt.landLost(height, height + 1)));
+            islands.add(scheduler.submit(file, (RisingTides rt) -> rt.numOfIslands(height)));
+        }
+        scheduler.run();
+
+        System.out.printf("%-28s %12s %12s %10s%n", "Terrain", "Land", "Lost at +1", "Islands");
+        for (int i = 0; i < files.length; i++) {
+            try {
+                System.out.printf("%-28s %12d %12d %10d%n", files[i].getName(), land.get(i).join(),
+                        lost.get(i).join(), islands.get(i).join());
+            } catch (CompletionException e) {
+                System.out.printf("%-28s error: %s%n", files[i].getName(), e.getCause());
+            }
+        }
+        System.out.printf("%nPeak estimated memory: %d MB of %d MB%n", scheduler.peakReservedBytes() >> 20,
+                maxBytes >> 20);
+        Metrics.dump(System.out);
+    }
+}
@@ -0,0 +1,83 @@
+package tides;
+
+/**
+ * This class sorts cell ids by a double key per cell, such as height or flood 
+ * level. It is a radix sort on the bits of the keys, so sorting a whole grid 
+ * doesn't need a Comparator or boxed Integers.
+ */
+final class CellSort {
+    private CellSort() {
+    }
+
+    /**
+     * @param keys one per cell id
+     * @return int[], every cell id ordered from smallest key to largest; ties keep id order
+     */
+    static int[] ascending(double[] keys) {
+        int n = keys.length;
+        var bits = new long[n];
+        var ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            bits[i] = sortable(keys[i]);
+            ids[i] = i;
+        }
+
+        var bitsOut = new long[n];
+        var idsOut = new int[n];
+        var counts = new int[257];
+        for (int shift = 0; shift < 64; shift += 8) {
+            java.util.Arrays.fill(counts, 0);
+            for (int i = 0; i < n; i++) {
+                counts[(int) ((bits[i] >>> shift) & 0xFF) + 1]++;
+            }
+
+            /* Skip the pass if every key has the same byte here. */
+            boolean allSame = false;
+            for (int b = 1; b <= 256; b++) {
+                if (counts[b] == n) {
+                    allSame = true;
+                    break;
+                }
+            }
+            if (allSame)
+                continue;
+
+            for (int b = 1; b <= 256; b++) {
+                counts[b] += counts[b - 1];
+            }
+            for (int i = 0; i < n; i++) {
+                int at = counts[(int) ((bits[i] >>> shift) & 0xFF)]++;
+                bitsOut[at] = bits[i];
+                idsOut[at] = ids[i];
+            }
+
+            long[] tempBits = bits;
+            bits = bitsOut;
+            bitsOut = tempBits;
+            int[] tempIds = ids;
+            ids = idsOut;
+            idsOut = tempIds;
+        }
+        return ids;
+    }
+
+    /**
+     * @param keys one per cell id
+     * @return int[], every cell id ordered from largest key to smallest
+     */
+    static int[] descending(double[] keys) {
+        int[] ids = ascending(keys);
+        for (int i = 0, j = ids.length - 1; i < j; i++, j--) {
+            int temp = ids[i];
+            ids[i] = ids[j];
+            ids[j] = temp;
+        }
+        return ids;
+    }
+
+    /* Maps a double to a long whose unsigned order matches the double's order. */
+    private static long sortable(double key) {
+        long bits = Double.doubleToLongBits(key);
+        return bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+    }
+}
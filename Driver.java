@@ -1,8 +1,11 @@
 package tides;
 
 import javax.swing.*;
+import javax.swing.Timer;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.lang.reflect.*;
@@ -40,6 +43,8 @@ public class Driver implements MouseMotionListener {
 
     private JLabel coordinates;
 
+    private JLabel hoverLine;
+
     private JLabel elevationExtremaLine;
 
     private JLabel isFloodedLine;
@@ -56,9 +61,33 @@ public class Driver implements MouseMotionListener {
 
     private JPanel controlPanel;
 
+    private JToggleButton riskButton;
+
+    /* Water heights sampled for the risk map. */
+    private static final int RISK_SAMPLES = 1000;
+
     private File lastFile = null;
 
-    private Terrain terrain = null;
+    private volatile Terrain terrain = null;
+
+    private volatile RisingTides risingTides = null;
+
+    /* Water height of the last run, which the hover readout answers for. */
+    private volatile double hoverWaterHeight = 0.0;
+
+    /*
+     * The hover readout. Mouse moves only leave the latest cell here; one
+     * worker answers whatever is latest when it gets to it, and a timer shows
+     * the latest answer once per frame, so a burst of moves costs one query.
+     */
+    private final AtomicReference<GridLocation> pendingHover = new AtomicReference<>();
+    private final AtomicBoolean hoverScheduled = new AtomicBoolean(false);
+    private final AtomicReference<String> hoverReadout = new AtomicReference<>();
+    private final ExecutorService hoverWorker = Executors.newSingleThreadExecutor((Runnable task) -> {
+        var thread = new Thread(task, "hover");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /* Returns a sorted list of all the terrain files we know. */
     private File[] terrainFilesIn(File directory) {
@@ -98,6 +127,87 @@ public class Driver implements MouseMotionListener {
         return result;
     }
 
+    /* Makes the "Metrics" button that shows the timings recorded so far. */
+    private JButton makeMetricsButton() {
+        var result = new JButton("Metrics");
+        result.addActionListener((ActionEvent e) -> {
+            String report = Metrics.report();
+            var text = new JTextArea(report.isEmpty() ? "Nothing recorded yet." : report);
+            text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+            text.setEditable(false);
+            JOptionPane.showMessageDialog(window, new JScrollPane(text), "Metrics",
+                    JOptionPane.PLAIN_MESSAGE);
+        });
+        return result;
+    }
+
+    /*
+     * Makes the "Risk Map" toggle. Pressed, it draws how likely each cell is 
+     * to flood if the water ends up anywhere around the two water heights 
+     * (a normal distribution centered between them, with a standard 
+     * deviation of half the gap); released, it goes back to the flooding.
+     */
+    private JToggleButton makeRiskButton() {
+        var result = new JToggleButton("Risk Map");
+        result.addActionListener((ActionEvent e) -> {
+            if (result.isSelected())
+                showRiskMap();
+            else
+                hideRiskMap();
+        });
+        return result;
+    }
+
+    /* Computes the risk map off the event thread, then shows it. */
+    private void showRiskMap() {
+        RisingTides rt = risingTides;
+        if (rt == null) {
+            riskButton.setSelected(false);
+            JOptionPane.showMessageDialog(window, "Please load a terrain first.", "Risk Map",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        double waterHeight, newWaterHeight;
+        try {
+            waterHeight = Double.parseDouble(heightInput.getText());
+            newWaterHeight = Double.parseDouble(newHeightInput.getText());
+        } catch (NumberFormatException e) {
+            riskButton.setSelected(false);
+            JOptionPane.showMessageDialog(window, "Please enter numbers for both water heights.", "Risk Map",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        setEnabled(controlPanel, false);
+        setStatusLine("Working out the flood risk...");
+        new Thread(() -> {
+            try {
+                var distribution = FloodRisk.normal((waterHeight + newWaterHeight) / 2,
+                        Math.abs(newWaterHeight - waterHeight) / 2, new Random(1));
+                FloodRisk risk = rt.floodRisk(distribution, RISK_SAMPLES);
+                display.setRiskMap(risk);
+                setStatusLine(String.format("Risk map: about %.0f cells of land expected to stay dry.",
+                        risk.expectedLand()));
+            } catch (Throwable e) {
+                setStatusLine("floodRisk() error! " + e.getMessage());
+                SwingUtilities.invokeLater(() -> riskButton.setSelected(false));
+            } finally {
+                SwingUtilities.invokeLater(() -> {
+                    display.repaint();
+                    setEnabled(controlPanel, true);
+                });
+            }
+        }, "risk").start();
+    }
+
+    /* Goes back to drawing the flooding. */
+    private void hideRiskMap() {
+        display.setRiskMap(null);
+        SwingUtilities.invokeLater(() -> display.repaint());
+        setStatusLine("");
+    }
+
     /* Builds the control panel. */
     private JPanel makeControlPanel() {
         JPanel container = new JPanel();
@@ -132,6 +242,14 @@ public class Driver implements MouseMotionListener {
         goButton.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
         panel.add(goButton);
 
+        var metricsButton = makeMetricsButton();
+        metricsButton.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
+        panel.add(metricsButton);
+
+        riskButton = makeRiskButton();
+        riskButton.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
+        panel.add(riskButton);
+
         container.add(panel);
 
         /* isFlooded() inputs */
@@ -151,6 +269,9 @@ public class Driver implements MouseMotionListener {
         coordinates = new JLabel("(0, 0)");
         panel2.add(coordinates);
 
+        hoverLine = new JLabel("");
+        panel2.add(hoverLine);
+
         container.add(panel2);
 
         /* Information from the elevationExtrema method. */
@@ -223,6 +344,12 @@ public class Driver implements MouseMotionListener {
 
         window.pack();
         window.setVisible(true);
+
+        /* Show the hover readout at the display's refresh rate. */
+        int refreshRate = window.getGraphicsConfiguration().getDevice().getDisplayMode().getRefreshRate();
+        if (refreshRate == DisplayMode.REFRESH_RATE_UNKNOWN || refreshRate <= 0)
+            refreshRate = 60;
+        new Timer(1000 / refreshRate, (ActionEvent e) -> showHover()).start();
     }
 
     /* Finds coordinates for each cell. Converts pixel locations to cell 
@@ -234,11 +361,8 @@ public class Driver implements MouseMotionListener {
     @Override
     public void mouseMoved(MouseEvent e) {
         try {
-            PointerInfo a = MouseInfo.getPointerInfo();
-            Point point = a.getLocation();
-            SwingUtilities.convertPointFromScreen(point, display);
-            int xScreenLocation = (int) (point.getX()/display.getWidthAspect());
-            int yScreenLocation = (int) (point.getY()/display.getHeightAspect());
+            int xScreenLocation = (int) (e.getX()/display.getWidthAspect());
+            int yScreenLocation = (int) (e.getY()/display.getHeightAspect());
 
             String coords = "(" + xScreenLocation + ", " + yScreenLocation +")";
 
@@ -249,9 +373,44 @@ public class Driver implements MouseMotionListener {
                 setStatusLine("");
 
             setCoordinates(coords);
+
+            /* Leave the cell for the hover worker, waking it if it's idle. */
+            pendingHover.set(new GridLocation(yScreenLocation, xScreenLocation));
+            if (hoverScheduled.compareAndSet(false, true))
+                hoverWorker.execute(this::answerHover);
         } catch (NullPointerException n) {}     
     }
 
+    /* Answers the latest hovered cell from its flood level, off the Swing thread. */
+    private void answerHover() {
+        /* Clear the flag first, so a cell left after we take ours wakes us again. */
+        hoverScheduled.set(false);
+        GridLocation cell = pendingHover.getAndSet(null);
+        RisingTides rt = risingTides;
+        if (cell == null || rt == null)
+            return;
+
+        long start = System.nanoTime();
+        FloodLevels levels = rt.floodLevels();
+        if (cell.row < 0 || cell.row >= levels.rows() || cell.col < 0 || cell.col >= levels.cols()) {
+            hoverReadout.set("");
+            return;
+        }
+        double water = hoverWaterHeight;
+        boolean flooded = levels.level(cell.row, cell.col) <= water;
+        double aboveWater = rt.heightAboveWater(water, cell);
+        hoverReadout.set(String.format("<html> &emsp <font color = 'red'>%s</font>, %.2f meters %s water</html>",
+                flooded ? "flooded" : "dry", Math.abs(aboveWater), aboveWater < 0 ? "below" : "above"));
+        Metrics.histogram("driver.hover").recordSince(start);
+    }
+
+    /* Shows the newest hover answer, if there's one not shown yet; runs on the Swing thread. */
+    private void showHover() {
+        String text = hoverReadout.getAndSet(null);
+        if (text != null)
+            hoverLine.setText(text);
+    }
+
     /* Methods to update text in main control panel if changes are made. */
     private void setCoordinates(final String text) {
         SwingUtilities.invokeLater(() -> {
@@ -353,6 +512,12 @@ public class Driver implements MouseMotionListener {
             return;
         }
 
+        /* A new run shows the flooding again. */
+        if (riskButton.isSelected()) {
+            riskButton.setSelected(false);
+            display.setRiskMap(null);
+        }
+
         setEnabled(controlPanel, false);
         new Thread() {
             public void run() {
@@ -360,11 +525,32 @@ public class Driver implements MouseMotionListener {
                     /* Did the terrain change? */
                     if (!terrainFile.equals(lastFile)) {
                         setStatusLine("Loading the Terrain...");
-                        terrain = TerrainLoader.loadTerrain(terrainFile, (int bytes, int total) -> {
+                        var stats = new TerrainStats();
+                        var index = TerrainIndex.open(terrainFile, (int bytes, int total) -> {
                             int percent = (int) (100.0 * bytes / total);
                             int totalMB = total / (1 << 20);
                             setStatusLine("Downloading Terrain " + " (" + percent + "% of " + totalMB + " MB)");
+                        }, new TerrainLoader.RowListener() {
+                            @Override
+                            public void onStart(double[][] heights, GridLocation[] sources) {
+                                stats.onStart(heights, sources);
+                                display.startTerrain(heights);
+                            }
+
+                            @Override
+                            public void onRows(double[][] heights, int fromRow, int toRow) {
+                                /* Show the rows and what's known so far while the rest load. */
+                                stats.onRows(heights, fromRow, toRow);
+                                display.showRows(heights, fromRow, toRow);
+                                setStatusLine("Loading the Terrain... (" + toRow + " of " + heights.length + " rows)");
+                                setElevationExtrema("<html><b> &nbsp Elevation Extrema:</b> &emsp &emsp "
+                                    + "so far, lowest <font color = 'red'>" + stats.minHeight()
+                                    + "</font> meters &nbsp / &nbsp highest <font color = 'red'>"
+                                    + stats.maxHeight() + "</font> meters</html>");
+                            }
                         });
+                        terrain = index.terrain();
+                        risingTides = index.risingTides();
                         display.setTerrain(terrain.heights);
                         lastFile = terrainFile;
                     }
@@ -372,7 +558,8 @@ public class Driver implements MouseMotionListener {
                     
                     // Results
                     setStatusLine("Watering the World... (running your code)");
-                    RisingTides rt = new RisingTides(terrain);
+                    RisingTides rt = risingTides;
+                    hoverWaterHeight = waterHeight;
                     try {
                         var flooded = rt.floodedRegionsIn(waterHeight);
 
@@ -0,0 +1,754 @@
+package tides;
+
+import java.awt.image.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+import javax.imageio.*;
+
+/**
+ * This class checks every fast flood, land and island engine against the
+ * plain reference semantics, and watches their speed.
+ *
+ * The reference floods breadth-first from every source over the cells at
+ * or below the water, and counts islands by joining 8-connected land with
+ * WeightedQuickUnionUF. Each terrain - the shipped Simple5x5 and CraterLake,
+ * any others named, and randomly generated ones with random sources and
+ * flat plateaus - is asked at water heights below, above and exactly at
+ * its cell heights, and every engine's mask, land count and island count
+ * must match the reference exactly. The terrain loader, tiled terrains and
+ * the TerrainIndex sidecar are checked on the way by reading each terrain
+ * back through them.
+ *
+ * Beyond whole-terrain queries, each terrain also gets random windows that
+ * are clipped by or lie off the grid, a random sequence of FloodScenario
+ * edits and source changes, a TideSimulation with a different level at each
+ * source, the diffs of run-length masks, island counts over tiny tiles on
+ * several threads, and a check that IslandMergeTree.islandAt groups cells
+ * into the same islands as IslandLabeling. The random choices come from a
+ * seed per terrain, so every round does the same work. The terrains named
+ * on the command line (and the shipped two) are also served by a TideServer
+ * on a free local port, and each of its endpoints is asked over HTTP.
+ *
+ * Each engine's time is added up over a round of every terrain, the best
+ * of several rounds is kept, and that is turned into cells per millisecond.
+ * The first run saves these to a baseline file; later runs flag any engine
+ * that has slowed down by more than a threshold, unless it took too little
+ * time in all to judge. Delete the file to take a new baseline. The exit
+ * status is 1 if anything mismatched or regressed.
+ */
+public final class EngineHarness {
+    private static final String BASELINE_FILE = "engine-baseline.properties";
+
+    /* Timed rounds over every terrain; each engine keeps its best. */
+    private static final int ROUNDS = 3;
+
+    /* Engines that take less than this in a round are too quick to time reliably. */
+    private static final double MIN_JUDGED_MILLIS = 20;
+
+    /* A terrain and the water heights to try on it. */
+    private static final class Case {
+        final String name;
+        final Terrain terrain;
+        final double[] waterHeights;
+        final long seed;
+
+        Case(String name, Terrain terrain, double[] waterHeights, long seed) {
+            this.name = name;
+            this.terrain = terrain;
+            this.waterHeights = waterHeights;
+            this.seed = seed;
+        }
+
+        int rows() {
+            return terrain.heights.length;
+        }
+
+        int cols() {
+            return terrain.heights[0].length;
+        }
+    }
+
+    private interface Engine<T> {
+        T run() throws Exception;
+    }
+
+    /* The status and body of an HTTP response. */
+    private static final class Response {
+        final int status;
+        final byte[] body;
+
+        Response(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        String text() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    private final File scratch;
+    private final Set<String> failures = new LinkedHashSet<>();
+
+    /* Per engine: total nanoseconds and cells in the round being timed, and in its best round. */
+    private Map<String, long[]> round = null;
+    private final Map<String, long[]> best = new TreeMap<>();
+
+    private EngineHarness(File scratch) {
+        this.scratch = scratch;
+    }
+
+    /**
+     * Usage: EngineHarness [random terrains] [seed] [regression threshold, e.g. 0.25] [terrain files...]
+     *
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) throws Exception {
+        int randomCases = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 0.25;
+
+        var files = new ArrayList<File>(List.of(new File("Simple5x5.terrain"), new File("CraterLake.terrain")));
+        for (int i = 3; i < args.length; i++) {
+            files.add(new File(args[i]));
+        }
+
+        var cases = new ArrayList<Case>();
+        var random = new Random(seed);
+        for (File file : files) {
+            Terrain terrain = TerrainLoader.loadTerrain(file, null);
+            cases.add(new Case(file.getName(), terrain, waterHeights(terrain.heights, random), random.nextLong()));
+        }
+        for (int i = 0; i < randomCases; i++) {
+            cases.add(randomCase(i, random));
+        }
+
+        File scratch = Files.createTempDirectory("tides-harness").toFile();
+        boolean failed;
+        try {
+            var harness = new EngineHarness(scratch);
+
+            /* Once untimed, so the timed run isn't measuring the JIT compiler. */
+            for (Case c : cases.subList(0, files.size())) {
+                harness.check(c);
+            }
+            harness.checkServer(cases.subList(0, files.size()));
+            for (int i = 0; i < ROUNDS; i++) {
+                harness.round = new HashMap<>();
+                for (Case c : cases) {
+                    harness.check(c);
+                }
+                harness.keepBest();
+            }
+
+            System.out.printf("%d terrains, %d mismatches%n", cases.size(), harness.failures.size());
+            harness.failures.stream().limit(20).forEach((String failure) -> System.out.println("  MISMATCH " + failure));
+            int regressions = harness.report(new File(BASELINE_FILE), threshold);
+            failed = !harness.failures.isEmpty() || regressions > 0;
+        } finally {
+            delete(scratch);
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    /* Runs every engine on one terrain at each of its water heights. */
+    private void check(Case c) throws Exception {
+        Terrain terrain = c.terrain;
+        int rows = c.rows(), cols = c.cols();
+        int cells = rows * cols;
+
+        /* Read the terrain back through the loader, the tiled format and the index sidecar. */
+        File text = new File(scratch, "case.terrain");
+        writeText(terrain, text);
+        Terrain loaded = time("loader.text", cells, () -> TerrainLoader.loadTerrain(text, null));
+        if (!Arrays.deepEquals(loaded.heights, terrain.heights) || !Arrays.equals(loaded.sources, terrain.sources))
+            fail(c, Double.NaN, "loader.text", "heights or sources differ");
+
+        File tiles = new File(scratch, "case.tiles");
+        TiledTerrain.write(new ArrayHeightGrid(terrain.heights), terrain.sources, tiles, 16);
+        File index = new File(text.getPath() + ".index");
+        index.delete();
+        TerrainIndex.open(text, null);
+        TerrainIndex reopened = time("index.load", cells, () -> TerrainIndex.open(text, null));
+        if (!reopened.wasLoaded())
+            fail(c, Double.NaN, "index.load", "sidecar wasn't used");
+
+        var rt = new RisingTides(terrain);
+        var indexed = reopened.risingTides();
+        var random = new Random(c.seed);
+        try (var tiled = TiledTerrain.open(tiles, 4)) {
+            var rtTiled = new RisingTides(tiled, tiled.sources());
+            FloodLevels levels = time("levels.build", cells, rt::floodLevels);
+            BasinTree basins = time("basins.build", cells, rt::basinTree);
+            time("mergeTree.build", cells, rt::islandMergeTree);
+            time("window.build", cells, rt::windowIndex);
+
+            boolean[][] previous = null;
+            for (double h : c.waterHeights) {
+                boolean[][] reference = referenceFlood(terrain, h);
+                FloodMask expected = FloodMask.of(reference);
+                long land = cells - expected.cardinality();
+                int islands = referenceIslands(reference);
+
+                checkMask(c, h, expected, "bfs", () -> rt.floodedMask(h));
+                checkMask(c, h, expected, "bfs.cached", () -> rt.floodedMask(h));
+                checkMask(c, h, expected, "floodedRegionsIn", () -> FloodMask.of(rt.floodedRegionsIn(h)));
+                checkMask(c, h, expected, "levels", () -> levels.floodedMask(h));
+                checkMask(c, h, expected, "rle", () -> {
+                    byte[] bytes = levels.runLengthMask(h).toBytes();
+                    return RunLengthMask.read(new ByteArrayInputStream(bytes)).toFloodMask();
+                });
+                checkMask(c, h, expected, "basins", () -> basins.floodedMask(terrain.sources, h));
+                checkMask(c, h, expected, "window", () -> rt.floodedMask(h, 0, 0, rows - 1, cols - 1));
+                checkMask(c, h, expected, "scenario", () -> new FloodScenario(copy(terrain), h).floodedMask());
+                checkMask(c, h, expected, "tide", () -> {
+                    var simulation = new TideSimulation(new ArrayHeightGrid(terrain.heights), terrain.sources, basins);
+                    var level = new double[terrain.sources.length];
+                    Arrays.fill(level, h);
+                    simulation.step(level);
+                    return simulation.floodedMask();
+                });
+                checkMask(c, h, expected, "tiled", () -> rtTiled.floodedMask(h));
+                checkMask(c, h, expected, "index", () -> indexed.floodedMask(h));
+
+                checkCount(c, h, land, "land", () -> rt.totalVisibleLand(h));
+                checkCount(c, h, land, "land.levels", () -> levels.landCells(h));
+                checkCount(c, h, land, "land.basins", () -> cells - basins.floodedCells(terrain.sources, h));
+                checkCount(c, h, land, "land.window", () -> rt.totalVisibleLand(h, 0, 0, rows - 1, cols - 1));
+                checkCount(c, h, land, "land.index", () -> indexed.totalVisibleLand(h));
+
+                checkCount(c, h, islands, "islands", () -> new RisingTides(terrain).numOfIslands(h));
+                checkCount(c, h, islands, "islands.cached", () -> rt.numOfIslands(h));
+                checkCount(c, h, islands, "islands.tiles",
+                        () -> TiledIslandCounter.count(expected, 8, 2));
+                checkCount(c, h, islands, "islands.mergeTree", () -> rt.islandMergeTree().islandsAt(h));
+                checkCount(c, h, islands, "islands.window", () -> rt.numOfIslands(h, 0, 0, rows - 1, cols - 1));
+                checkCount(c, h, islands, "islands.labeling", () -> rt.labelIslands(h).count());
+                checkCount(c, h, islands, "islands.scenario", () -> new FloodScenario(copy(terrain), h).numOfIslands());
+                checkCount(c, h, islands, "islands.tiled", () -> rtTiled.numOfIslands(h));
+                checkCount(c, h, islands, "islands.index", () -> indexed.numOfIslands(h));
+                checkCount(c, h, islands, "islands.tiles.small",
+                        () -> TiledIslandCounter.count(expected, 1 + random.nextInt(3), 2 + random.nextInt(3)));
+
+                checkWindows(c, h, reference, rt, random);
+                checkIslandIdentity(c, h, rt);
+                checkRunLengthDiffs(c, h, reference, previous, levels, random);
+                previous = reference;
+            }
+            checkScenarioEdits(c, random);
+            checkTideSources(c, basins, random);
+        }
+    }
+
+    /* Windows that lie inside, across the edges of and outside the terrain, against the reference cut down to them. */
+    private void checkWindows(Case c, double h, boolean[][] reference, RisingTides rt, Random random)
+            throws Exception {
+        int rows = c.rows(), cols = c.cols();
+        WeightedQuickUnionUF islandsOf = referenceIslandRoots(reference);
+        for (int i = 0; i < 3; i++) {
+            /* Corners up to a third of the terrain beyond each edge, so some windows are clipped or empty. */
+            int top = random.nextInt(rows + 2 * (rows / 3 + 1)) - (rows / 3 + 1);
+            int left = random.nextInt(cols + 2 * (cols / 3 + 1)) - (cols / 3 + 1);
+            int bottom = top + random.nextInt(rows + 1);
+            int right = left + random.nextInt(cols + 1);
+
+            int clippedTop = Math.max(0, top), clippedLeft = Math.max(0, left);
+            int clippedBottom = Math.min(rows - 1, bottom), clippedRight = Math.min(cols - 1, right);
+            var expected = new FloodMask(Math.max(0, clippedBottom - clippedTop + 1),
+                    Math.max(0, clippedRight - clippedLeft + 1));
+            long land = 0;
+            var islands = new HashSet<GridLocation>();
+            for (int row = clippedTop; row <= clippedBottom; row++) {
+                for (int col = clippedLeft; col <= clippedRight; col++) {
+                    if (reference[row][col]) {
+                        expected.set(row - clippedTop, col - clippedLeft);
+                    } else {
+                        land++;
+                        islands.add(islandsOf.find(new GridLocation(row, col)));
+                    }
+                }
+            }
+
+            checkMask(c, h, expected, "window.clipped", () -> rt.floodedMask(h, top, left, bottom, right));
+            checkCount(c, h, land, "land.window.clipped", () -> rt.totalVisibleLand(h, top, left, bottom, right));
+            checkCount(c, h, islands.size(), "islands.window.clipped",
+                    () -> rt.numOfIslands(h, top, left, bottom, right));
+        }
+    }
+
+    /* IslandMergeTree.islandAt must put two cells on the same island exactly when IslandLabeling does. */
+    private void checkIslandIdentity(Case c, double h, RisingTides rt) throws Exception {
+        int rows = c.rows(), cols = c.cols();
+        IslandMergeTree tree = rt.islandMergeTree();
+        IslandLabeling labeling = rt.labelIslands(h);
+        int[] nodes = time("mergeTree.islandAt", rows * cols, () -> {
+            var result = new int[rows * cols];
+            for (int row = 0; row < rows; row++) {
+                for (int col = 0; col < cols; col++) {
+                    result[row * cols + col] = tree.islandAt(h, new GridLocation(row, col));
+                }
+            }
+            return result;
+        });
+
+        /* A one-to-one match between labels and nodes, with flooded cells (label 0) at node -1. */
+        var nodeOfLabel = new HashMap<Integer, Integer>();
+        var labelOfNode = new HashMap<Integer, Integer>();
+        for (int cell = 0; cell < nodes.length; cell++) {
+            int label = labeling.labels()[cell];
+            int node = nodes[cell];
+            if ((label == 0) != (node == -1) || nodeOfLabel.getOrDefault(label, node) != node
+                    || labelOfNode.getOrDefault(node, label) != label) {
+                fail(c, h, "mergeTree.islandAt", "cell (" + cell / cols + ", " + cell % cols + ") is on node " + node
+                        + " but island " + label);
+                return;
+            }
+            nodeOfLabel.put(label, node);
+            labelOfNode.put(node, label);
+        }
+    }
+
+    /* Diffs of run-length masks: between this height and the last, and against a mask that isn't a flood at all. */
+    private void checkRunLengthDiffs(Case c, double h, boolean[][] reference, boolean[][] previous, FloodLevels levels,
+            Random random) throws Exception {
+        int rows = c.rows(), cols = c.cols();
+        boolean[][] otherCells = previous;
+        if (otherCells == null) {
+            otherCells = new boolean[rows][cols];
+            for (int row = 0; row < rows; row++) {
+                for (int col = 0; col < cols; col++) {
+                    otherCells[row][col] = random.nextInt(3) == 0;
+                }
+            }
+        }
+
+        var expected = new FloodMask(rows, cols);
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                if (reference[row][col] != otherCells[row][col])
+                    expected.set(row, col);
+            }
+        }
+
+        RunLengthMask mask = levels.runLengthMask(h);
+        RunLengthMask otherMask = RunLengthMask.of(FloodMask.of(otherCells));
+        checkMask(c, h, expected, "rle.diff", () -> mask.diff(otherMask).toFloodMask());
+        checkMask(c, h, expected, "rle.diff", () -> otherMask.diff(mask).toFloodMask());
+        checkCount(c, h, expected.cardinality(), "rle.countDifferences", () -> mask.countDifferences(otherMask));
+    }
+
+    /*
+     * A random run of FloodScenario edits and source changes at one of the 
+     * water heights, checked after each against the reference on the 
+     * scenario's terrain and sources as they then are.
+     */
+    private void checkScenarioEdits(Case c, Random random) throws Exception {
+        int rows = c.rows(), cols = c.cols();
+        double h = c.waterHeights[random.nextInt(c.waterHeights.length)];
+        Terrain edited = copy(c.terrain);
+        var scenario = new FloodScenario(edited, h);
+
+        for (int step = 0; step < 8; step++) {
+            String engine;
+            GridLocation[] sources = scenario.sources();
+            int kind = random.nextInt(4);
+            if (kind == 0 || (kind >= 2 && sources.length == 0)) {
+                /* Raise or lower a rectangle, sometimes hanging off the terrain. */
+                int top = random.nextInt(rows + 2) - 1, left = random.nextInt(cols + 2) - 1;
+                int bottom = top + random.nextInt(4), right = left + random.nextInt(4);
+                double change = (random.nextInt(5) - 2) * (1 + Math.abs(h));
+                engine = "scenario.editRectangle";
+                time(engine, rows * cols,
+                        () -> scenario.editRectangle(top, left, bottom, right, (double height) -> height + change));
+            } else if (kind == 1) {
+                var source = new GridLocation(random.nextInt(rows), random.nextInt(cols));
+                engine = "scenario.addSource";
+                time(engine, rows * cols, () -> scenario.addSource(source));
+            } else if (kind == 2) {
+                GridLocation source = sources[random.nextInt(sources.length)];
+                engine = "scenario.removeSource";
+                time(engine, rows * cols, () -> scenario.removeSource(source));
+            } else {
+                GridLocation source = sources[random.nextInt(sources.length)];
+                var destination = new GridLocation(random.nextInt(rows), random.nextInt(cols));
+                engine = "scenario.moveSource";
+                time(engine, rows * cols, () -> scenario.moveSource(source, destination));
+            }
+
+            boolean[][] reference = referenceFlood(new Terrain(edited.heights, scenario.sources()), h);
+            FloodMask expected = FloodMask.of(reference);
+            checkMask(c, h, expected, engine, scenario::floodedMask);
+            checkCount(c, h, rows * cols - expected.cardinality(), "land." + engine, scenario::totalVisibleLand);
+            checkCount(c, h, referenceIslands(reference), "islands." + engine, scenario::numOfIslands);
+        }
+    }
+
+    /* A TideSimulation stepped through random levels, a different one at each source, against a flood per source. */
+    private void checkTideSources(Case c, BasinTree basins, Random random) throws Exception {
+        Terrain terrain = c.terrain;
+        int rows = c.rows(), cols = c.cols();
+        var simulation = new TideSimulation(new ArrayHeightGrid(terrain.heights), terrain.sources, basins);
+        var level = new double[terrain.sources.length];
+        for (int step = 0; step < 4; step++) {
+            var expected = new FloodMask(rows, cols);
+            for (int i = 0; i < level.length; i++) {
+                level[i] = c.waterHeights[random.nextInt(c.waterHeights.length)];
+                boolean[][] flooded = referenceFlood(new Terrain(terrain.heights,
+                        new GridLocation[] { terrain.sources[i] }), level[i]);
+                for (int row = 0; row < rows; row++) {
+                    for (int col = 0; col < cols; col++) {
+                        if (flooded[row][col])
+                            expected.set(row, col);
+                    }
+                }
+            }
+
+            checkMask(c, Double.NaN, expected, "tide.sources", () -> {
+                simulation.step(level);
+                return simulation.floodedMask();
+            });
+            checkCount(c, Double.NaN, rows * cols - expected.cardinality(), "land.tide.sources",
+                    simulation::totalVisibleLand);
+        }
+    }
+
+    /*
+     * Every TideServer endpoint over HTTP, on a free local port, against the
+     * reference for each terrain; plus the terrain list, which must leave out
+     * names that can't be asked for, and an error whose message needs escaping.
+     */
+    private void checkServer(List<Case> cases) throws Exception {
+        File directory = new File(scratch, "served");
+        directory.mkdir();
+        var names = new TreeSet<String>();
+        for (Case c : cases) {
+            String name = c.name.replaceAll("\\.terrain$", "");
+            writeText(c.terrain, new File(directory, name + ".terrain"));
+            names.add(name);
+        }
+        writeText(cases.get(0).terrain, new File(directory, "not servable.terrain"));
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (var server = new TideServer(directory, new InetSocketAddress(loopback, 0))) {
+            server.start();
+            String base = "http://" + loopback.getHostAddress() + ":" + server.port();
+
+            var json = new StringBuilder("{\"terrains\":[");
+            for (String name : names) {
+                json.append(json.charAt(json.length() - 1) == '[' ? "\"" : ",\"").append(name).append('"');
+            }
+            String listed = get(base + "/terrains").text();
+            if (!listed.equals(json.append("]}").toString()))
+                fail(cases.get(0), Double.NaN, "server.terrains", "listed " + listed);
+
+            Response missing = get(base + "/land?terrain=%0Abad&height=0");
+            if (missing.status != 404 || !missing.text().equals("{\"error\":\"No such terrain: \\u000abad\"}"))
+                fail(cases.get(0), Double.NaN, "server.error", missing.status + " " + missing.text());
+
+            for (Case c : cases) {
+                String terrain = base + "/%s?terrain=" + c.name.replaceAll("\\.terrain$", "") + "&height=%s";
+                var random = new Random(c.seed);
+                double[] heights = c.waterHeights;
+                for (int i = 0; i < heights.length; i++) {
+                    double h = heights[i], next = heights[(i + 1) % heights.length];
+                    boolean[][] reference = referenceFlood(c.terrain, h);
+                    FloodMask expected = FloodMask.of(reference);
+                    long land = (long) c.rows() * c.cols() - expected.cardinality();
+                    long nextLand = (long) c.rows() * c.cols() - FloodMask.of(referenceFlood(c.terrain, next)).cardinality();
+                    int row = random.nextInt(c.rows()), col = random.nextInt(c.cols());
+
+                    checkMask(c, h, expected, "server.flood.png", () -> {
+                        BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+                                get(String.format(terrain, "flood", h) + "&format=png").body));
+                        var mask = new FloodMask(image.getHeight(), image.getWidth());
+                        for (int y = 0; y < image.getHeight(); y++) {
+                            for (int x = 0; x < image.getWidth(); x++) {
+                                if (image.getRaster().getSample(x, y, 0) == 1)
+                                    mask.set(y, x);
+                            }
+                        }
+                        return mask;
+                    });
+                    checkMask(c, h, expected, "server.flood.rle", () -> RunLengthMask.read(new ByteArrayInputStream(
+                            get(String.format(terrain, "flood", h) + "&format=rle").body)).toFloodMask());
+                    checkCount(c, h, land, "server.land",
+                            () -> Long.parseLong(jsonField(get(String.format(terrain, "land", h)).text(), "land")));
+                    checkCount(c, h, land - nextLand, "server.landLost", () -> Long.parseLong(jsonField(
+                            get(String.format(terrain, "landLost", h) + "&newHeight=" + next).text(), "landLost")));
+                    checkCount(c, h, referenceIslands(reference), "server.islands",
+                            () -> Long.parseLong(jsonField(get(String.format(terrain, "islands", h)).text(), "islands")));
+                    checkCount(c, h, reference[row][col] ? 1 : 0, "server.point", () -> {
+                        String point = get(String.format(terrain, "point", h) + "&row=" + row + "&col=" + col).text();
+                        return Boolean.parseBoolean(jsonField(point, "flooded")) ? 1 : 0;
+                    });
+                }
+            }
+        }
+    }
+
+    /* Sends a GET request and reads the answer, error or not. */
+    private static Response get(String url) throws IOException {
+        var connection = (HttpURLConnection) URI.create(url).toURL().openConnection();
+        try {
+            int status = connection.getResponseCode();
+            try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                return new Response(status, in == null ? new byte[0] : in.readAllBytes());
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /* A field of a flat JSON object as its text, or null if there isn't one. */
+    private static String jsonField(String json, String name) {
+        Matcher matcher = Pattern.compile("\"" + name + "\":([^,}]*)").matcher(json);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    private void checkMask(Case c, double h, FloodMask expected, String engine, Engine<FloodMask> run)
+            throws Exception {
+        FloodMask actual = time(engine, c.rows() * c.cols(), run);
+        if (actual.rows() != expected.rows() || actual.cols() != expected.cols()) {
+            fail(c, h, engine, "mask is " + actual.rows() + " x " + actual.cols());
+            return;
+        }
+        for (int row = 0; row < expected.rows(); row++) {
+            for (int col = 0; col < expected.cols(); col++) {
+                if (actual.get(row, col) != expected.get(row, col)) {
+                    fail(c, h, engine, "cell (" + row + ", " + col + ") should be "
+                            + (expected.get(row, col) ? "flooded" : "dry"));
+                    return;
+                }
+            }
+        }
+    }
+
+    private void checkCount(Case c, double h, long expected, String engine, Engine<? extends Number> run)
+            throws Exception {
+        long actual = time(engine, c.rows() * c.cols(), run).longValue();
+        if (actual != expected)
+            fail(c, h, engine, "got " + actual + ", expected " + expected);
+    }
+
+    private void fail(Case c, double h, String engine, String what) {
+        failures.add(engine + " on " + c.name + (Double.isNaN(h) ? "" : " at " + h) + ": " + what);
+    }
+
+    /* Runs an engine, adding its time to its total if a round is being timed. */
+    private <T> T time(String engine, long cells, Engine<T> run) throws Exception {
+        long start = System.nanoTime();
+        T result = run.run();
+        long nanos = System.nanoTime() - start;
+        if (round != null) {
+            long[] total = round.computeIfAbsent(engine, (String name) -> new long[2]);
+            total[0] += nanos;
+            total[1] += cells;
+            Metrics.histogram("harness." + engine).record(nanos);
+        }
+        return result;
+    }
+
+    /* Keeps each engine's quickest round; the slower ones were slowed by something else. */
+    private void keepBest() {
+        for (var entry : round.entrySet()) {
+            long[] kept = best.get(entry.getKey());
+            if (kept == null || entry.getValue()[0] < kept[0])
+                best.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /*
+     * Prints each engine's throughput next to the baseline's and returns how
+     * many fell short of it by more than the threshold. Saves the baseline if
+     * there isn't one.
+     */
+    private int report(File baselineFile, double threshold) throws IOException {
+        var baseline = new Properties();
+        boolean haveBaseline = baselineFile.exists();
+        if (haveBaseline) {
+            try (var in = new FileInputStream(baselineFile)) {
+                baseline.load(in);
+            }
+        }
+
+        int regressions = 0;
+        var measured = new Properties();
+        System.out.printf("%n%-30s %12s %14s %14s %8s%n", "Engine", "Round ms", "Cells/ms", "Baseline", "Change");
+        for (var entry : best.entrySet()) {
+            long nanos = entry.getValue()[0];
+            long cells = entry.getValue()[1];
+            double throughput = cells / Math.max(1e-6, nanos / 1e6);
+            measured.setProperty(entry.getKey(), Double.toString(throughput));
+
+            String before = baseline.getProperty(entry.getKey());
+            if (before == null) {
+                System.out.printf("%-30s %12.1f %14.0f %14s %8s%n", entry.getKey(), nanos / 1e6, throughput, "-", "");
+                continue;
+            }
+            double change = throughput / Double.parseDouble(before) - 1;
+            boolean judged = nanos / 1e6 >= MIN_JUDGED_MILLIS;
+            boolean regressed = judged && change < -threshold;
+            regressions += regressed ? 1 : 0;
+            System.out.printf("%-30s %12.1f %14.0f %14.0f %+7.0f%%%s%n", entry.getKey(), nanos / 1e6, throughput,
+                    Double.parseDouble(before), change * 100, regressed ? "  REGRESSION" : judged ? "" : "  (too quick)");
+        }
+
+        if (!haveBaseline) {
+            try (var out = new FileOutputStream(baselineFile)) {
+                measured.store(out, "Engine throughput in cells per millisecond");
+            }
+            System.out.println("Saved baseline to " + baselineFile);
+        } else if (regressions > 0) {
+            System.out.printf("%d engines slowed down by more than %.0f%%%n", regressions, threshold * 100);
+        }
+        return regressions;
+    }
+
+    /* The reference flood: breadth-first from every source over the cells at or below the water. */
+    private static boolean[][] referenceFlood(Terrain terrain, double height) {
+        double[][] heights = terrain.heights;
+        int rows = heights.length, cols = heights[0].length;
+        var flooded = new boolean[rows][cols];
+        var queue = new ArrayDeque<GridLocation>();
+        for (GridLocation source : terrain.sources) {
+            if (heights[source.row][source.col] <= height && !flooded[source.row][source.col]) {
+                flooded[source.row][source.col] = true;
+                queue.add(source);
+            }
+        }
+
+        int[][] steps = { { -1, 0 }, { 1, 0 }, { 0, -1 }, { 0, 1 } };
+        while (!queue.isEmpty()) {
+            GridLocation cell = queue.remove();
+            for (int[] step : steps) {
+                int row = cell.row + step[0], col = cell.col + step[1];
+                if (row >= 0 && row < rows && col >= 0 && col < cols && !flooded[row][col]
+                        && heights[row][col] <= height) {
+                    flooded[row][col] = true;
+                    queue.add(new GridLocation(row, col));
+                }
+            }
+        }
+        return flooded;
+    }
+
+    /* The reference island count: 8-connected land joined with WeightedQuickUnionUF, one root per island. */
+    private static int referenceIslands(boolean[][] flooded) {
+        int rows = flooded.length, cols = flooded[0].length;
+        WeightedQuickUnionUF uf = referenceIslandRoots(flooded);
+
+        int islands = 0;
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                var cell = new GridLocation(row, col);
+                if (!flooded[row][col] && uf.find(cell).equals(cell))
+                    islands++;
+            }
+        }
+        return islands;
+    }
+
+    /* 8-connected land joined with WeightedQuickUnionUF, so each island's cells share a root. */
+    private static WeightedQuickUnionUF referenceIslandRoots(boolean[][] flooded) {
+        int rows = flooded.length, cols = flooded[0].length;
+        var uf = new WeightedQuickUnionUF(rows, cols);
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                if (flooded[row][col])
+                    continue;
+                for (int r = Math.max(0, row - 1); r <= Math.min(rows - 1, row + 1); r++) {
+                    for (int c = Math.max(0, col - 1); c <= Math.min(cols - 1, col + 1); c++) {
+                        if (!flooded[r][c])
+                            uf.union(new GridLocation(row, col), new GridLocation(r, c));
+                    }
+                }
+            }
+        }
+        return uf;
+    }
+
+    /* A generated terrain of random size, relief and island density, sometimes with flat plateaus and extra sources. */
+    private static Case randomCase(int number, Random random) {
+        int rows = 1 + random.nextInt(random.nextInt(4) == 0 ? 6 : 120);
+        int cols = 1 + random.nextInt(random.nextInt(4) == 0 ? 6 : 120);
+        var generator = new TerrainGenerator(rows, cols, random.nextLong(), random.nextInt(4),
+                5 + random.nextDouble() * 5000);
+        Terrain terrain = generator.toTerrain();
+
+        /* Whole tens of meters, so many cells tie with each other and with the water. */
+        if (random.nextBoolean()) {
+            for (double[] row : terrain.heights) {
+                for (int col = 0; col < cols; col++) {
+                    row[col] = Math.round(row[col] / 10) * 10.0;
+                }
+            }
+        }
+
+        /* Sources inside the terrain too, and sometimes the same cell twice. */
+        var sources = new ArrayList<GridLocation>(Arrays.asList(terrain.sources));
+        for (int i = random.nextInt(4); i > 0; i--) {
+            sources.add(new GridLocation(random.nextInt(rows), random.nextInt(cols)));
+        }
+        if (!sources.isEmpty() && random.nextInt(4) == 0)
+            sources.add(sources.get(0));
+
+        terrain = new Terrain(terrain.heights, sources.toArray(new GridLocation[0]));
+        return new Case("random-" + number + " (" + rows + " x " + cols + ", " + sources.size() + " sources)",
+                terrain, waterHeights(terrain.heights, random), random.nextLong());
+    }
+
+    /* Water below everything, above everything, exactly at some cells, and between. */
+    private static double[] waterHeights(double[][] heights, Random random) {
+        double[] extrema = GridKernels.extrema(heights);
+        var result = new TreeSet<Double>();
+        result.add(extrema[0] - 1);
+        result.add(extrema[1] + 1);
+        for (int i = 0; i < 4; i++) {
+            double[] row = heights[random.nextInt(heights.length)];
+            result.add(row[random.nextInt(row.length)]);
+        }
+        for (int i = 0; i < 2; i++) {
+            result.add(extrema[0] + random.nextDouble() * (extrema[1] - extrema[0]));
+        }
+        return result.stream().mapToDouble(Double::doubleValue).toArray();
+    }
+
+    private static void delete(File file) {
+        File[] contents = file.listFiles();
+        for (File inside : contents == null ? new File[0] : contents) {
+            delete(inside);
+        }
+        file.delete();
+    }
+
+    private static Terrain copy(Terrain terrain) {
+        var heights = new double[terrain.heights.length][];
+        for (int row = 0; row < heights.length; row++) {
+            heights[row] = terrain.heights[row].clone();
+        }
+        return new Terrain(heights, terrain.sources.clone());
+    }
+
+    /* Writes a terrain as .terrain text, exactly: Double.toString reads back to the same double. */
+    private static void writeText(Terrain terrain, File file) throws IOException {
+        try (var out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            out.println("local");
+            out.println(terrain.heights.length + " " + terrain.heights[0].length);
+            out.println(terrain.sources.length);
+            for (GridLocation source : terrain.sources) {
+                out.println(source.row + " " + source.col);
+            }
+            for (double[] row : terrain.heights) {
+                var line = new StringBuilder();
+                for (double height : row) {
+                    line.append(height).append(' ');
+                }
+                out.println(line);
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package tides;
+
+import java.util.*;
+
+/**
+ * This class describes how the flooding of a terrain changed after an edit 
+ * or a change of water sources: 
+ * which cells went under water, which dried out, and the new land and island 
+ * counts. Only the cells that changed are listed, so a display can update 
+ * just those.
+ */
+public final class FloodDelta {
+    private final int cols;
+    private final int[] flooded;
+    private final int[] dried;
+    private final int updated;
+    private final int land;
+    private final int islands;
+
+    FloodDelta(int cols, int[] flooded, int[] dried, int updated, int land, int islands) {
+        this.cols = cols;
+        this.flooded = flooded;
+        this.dried = dried;
+        this.updated = updated;
+        this.land = land;
+        this.islands = islands;
+    }
+
+    /**
+     * @return boolean, true if no cell changed between flooded and dry
+     */
+    public boolean isEmpty() {
+        return flooded.length == 0 && dried.length == 0;
+    }
+
+    /**
+     * @return List of GridLocations, the cells that are now flooded but weren't before
+     */
+    public List<GridLocation> newlyFlooded() {
+        return locations(flooded);
+    }
+
+    /**
+     * @return List of GridLocations, the cells that were flooded but now are dry
+     */
+    public List<GridLocation> newlyDry() {
+        return locations(dried);
+    }
+
+    private List<GridLocation> locations(int[] cells) {
+        var result = new ArrayList<GridLocation>(cells.length);
+        for (int cell : cells) {
+            result.add(new GridLocation(cell / cols, cell % cols));
+        }
+        return result;
+    }
+
+    /* Changed cells as row-major ids, for the visualizer. */
+    int[] floodedCells() {
+        return flooded;
+    }
+
+    int[] driedCells() {
+        return dried;
+    }
+
+    int cols() {
+        return cols;
+    }
+
+    /**
+     * @return int, how many cells had their flood level recomputed
+     */
+    public int cellsUpdated() {
+        return updated;
+    }
+
+    /**
+     * @return int, the number of cells above water after the change
+     */
+    public int totalVisibleLand() {
+        return land;
+    }
+
+    /**
+     * @return int, the number of islands after the change
+     */
+    public int numOfIslands() {
+        return islands;
+    }
+
+    @Override
+    public String toString() {
+        return flooded.length + " cells flooded, " + dried.length + " cells dried, " 
+            + land + " cells of land, " + islands + " islands";
+    }
+}
@@ -0,0 +1,194 @@
+package tides;
+
+import java.util.*;
+
+/**
+ * This class holds, for every cell, the lowest water height at which the cell 
+ * is flooded from the terrain's sources.
+ * 
+ * Water reaches a cell along some path of 4-connected cells from a source, 
+ * and the path floods once the water covers its highest cell. A cell's flood 
+ * level is therefore the lowest "highest cell" over all paths from any 
+ * source, and the cell is flooded at a water height exactly when its flood 
+ * level is at or below that height. Cells no source can reach have a flood 
+ * level of positive infinity.
+ * 
+ * The levels are found with a priority flood: cells are settled from lowest 
+ * level to highest, like Dijkstra's algorithm with "max" in place of "+". 
+ * Once built, every flood query at any water height is a comparison per cell.
+ */
+public final class FloodLevels {
+    private final int rows;
+    private final int cols;
+    private final double[] levels;
+
+    private FloodLevels(int rows, int cols, double[] levels) {
+        this.rows = rows;
+        this.cols = cols;
+        this.levels = levels;
+    }
+
+    /* Wraps levels computed earlier, such as ones TerrainIndex saved. */
+    static FloodLevels of(int rows, int cols, double[] levels) {
+        return new FloodLevels(rows, cols, levels);
+    }
+
+    /**
+     * Computes the flood level of every cell.
+     * 
+     * @param terrain heights of every cell
+     * @param sources of water on the terrain
+     * @return FloodLevels, the flood level of every cell
+     */
+    public static FloodLevels compute(HeightGrid terrain, GridLocation[] sources) {
+        int rows = terrain.rows();
+        int cols = terrain.cols();
+        if ((long) rows * cols > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Grid is too large: " + rows + " x " + cols);
+
+        var levels = new double[rows * cols];
+        Arrays.fill(levels, Double.POSITIVE_INFINITY);
+        var heap = new CellHeap();
+
+        for (GridLocation source : sources) {
+            int cell = source.row * cols + source.col;
+            double level = terrain.height(source.row, source.col);
+            if (level < levels[cell]) {
+                levels[cell] = level;
+                heap.push(cell, level);
+            }
+        }
+
+        while (!heap.isEmpty()) {
+            double level = heap.peekKey();
+            int cell = heap.pop();
+            if (level > levels[cell])
+                continue; // already settled lower
+
+            int row = cell / cols;
+            int col = cell % cols;
+            for (int d = 0; d < 4; d++) {
+                int r = row + (d == 0 ? -1 : d == 1 ? 1 : 0);
+                int c = col + (d == 2 ? -1 : d == 3 ? 1 : 0);
+                if (r < 0 || r >= rows || c < 0 || c >= cols)
+                    continue;
+
+                int neighbor = r * cols + c;
+                double reached = Math.max(level, terrain.height(r, c));
+                if (reached < levels[neighbor]) {
+                    levels[neighbor] = reached;
+                    heap.push(neighbor, reached);
+                }
+            }
+        }
+        return new FloodLevels(rows, cols, levels);
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int cols() {
+        return cols;
+    }
+
+    /**
+     * @param row of the cell
+     * @param col of the cell
+     * @return double, the lowest water height that floods the cell
+     */
+    public double level(int row, int col) {
+        return levels[row * cols + col];
+    }
+
+    /**
+     * @return double[], the flood level of every cell in row-major order (not a copy)
+     */
+    public double[] levels() {
+        return levels;
+    }
+
+    /**
+     * @param height of the water
+     * @return FloodMask, where cells flooded at that height are set
+     */
+    public FloodMask floodedMask(double height) {
+        FloodMask flooded = new FloodMask(rows, cols);
+        GridKernels.floodMask(levels, height, flooded);
+        return flooded;
+    }
+
+    /**
+     * @param height of the water
+     * @return RunLengthMask, the cells flooded at that height as runs along each row
+     */
+    public RunLengthMask runLengthMask(double height) {
+        return RunLengthMask.fromLevels(levels, rows, cols, height);
+    }
+
+    /**
+     * @param height of the water
+     * @return int, the number of cells above water at that height
+     */
+    public int landCells(double height) {
+        return (int) GridKernels.countAbove(levels, height);
+    }
+
+    /* A binary min-heap of cell ids keyed by level, without boxing. */
+    static final class CellHeap {
+        private int[] cells = new int[64];
+        private double[] keys = new double[64];
+        private int size = 0;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        double peekKey() {
+            return keys[0];
+        }
+
+        void push(int cell, double key) {
+            if (size == cells.length) {
+                cells = Arrays.copyOf(cells, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (keys[parent] <= key)
+                    break;
+                cells[i] = cells[parent];
+                keys[i] = keys[parent];
+                i = parent;
+            }
+            cells[i] = cell;
+            keys[i] = key;
+        }
+
+        int pop() {
+            int top = cells[0];
+            size--;
+            int cell = cells[size];
+            double key = keys[size];
+
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && keys[child + 1] < keys[child])
+                    child++;
+                if (keys[child] >= key)
+                    break;
+                cells[i] = cells[child];
+                keys[i] = keys[child];
+                i = child;
+            }
+            cells[i] = cell;
+            keys[i] = key;
+            return top;
+        }
+    }
+}
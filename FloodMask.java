@@ -0,0 +1,125 @@
+package tides;
+
+/**
+ * This class marks which cells of a grid are flooded, using one bit per cell.
+ * 
+ * A boolean[][] costs a byte per cell plus an array header per row, which 
+ * is more than the heights themselves need on the largest terrains. The flood
+ * code fills one of these and only expands it to a boolean[][] when asked.
+ */
+public final class FloodMask {
+    private final int rows;
+    private final int cols;
+    private final long[] bits;
+
+    /**
+     * Creates a mask where no cell is flooded.
+     * 
+     * @param rows of the grid
+     * @param cols of the grid
+     */
+    public FloodMask(int rows, int cols) {
+        long cells = (long) rows * cols;
+        if (cells > 64L * Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Grid is too large: " + rows + " x " + cols);
+
+        this.rows = rows;
+        this.cols = cols;
+        this.bits = new long[(int) ((cells + 63) >>> 6)];
+    }
+
+    /**
+     * @param flooded grid, where flooded cells are true
+     * @return FloodMask, with the same cells flooded
+     */
+    public static FloodMask of(boolean[][] flooded) {
+        int rows = flooded.length;
+        int cols = rows == 0 ? 0 : flooded[0].length;
+        FloodMask mask = new FloodMask(rows, cols);
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                if (flooded[row][col])
+                    mask.set(row, col);
+            }
+        }
+        return mask;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int cols() {
+        return cols;
+    }
+
+    /**
+     * @param row of the cell
+     * @param col of the cell
+     * @return boolean, true if the cell is flooded
+     */
+    public boolean get(int row, int col) {
+        long index = (long) row * cols + col;
+        return (bits[(int) (index >>> 6)] & (1L << index)) != 0;
+    }
+
+    /**
+     * Marks the cell as flooded.
+     * 
+     * @param row of the cell
+     * @param col of the cell
+     */
+    public void set(int row, int col) {
+        long index = (long) row * cols + col;
+        bits[(int) (index >>> 6)] |= 1L << index;
+    }
+
+    /**
+     * Marks the cell as not flooded.
+     * 
+     * @param row of the cell
+     * @param col of the cell
+     */
+    public void clear(int row, int col) {
+        long index = (long) row * cols + col;
+        bits[(int) (index >>> 6)] &= ~(1L << index);
+    }
+
+    /**
+     * @return long, the number of flooded cells
+     */
+    public long cardinality() {
+        long count = 0;
+        for (long word : bits) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * @return FloodMask, a separate mask with the same cells flooded
+     */
+    public FloodMask copy() {
+        var result = new FloodMask(rows, cols);
+        System.arraycopy(bits, 0, result.bits, 0, bits.length);
+        return result;
+    }
+
+    /* The bits themselves, cell row * cols + col at bit (index % 64) of word (index / 64). */
+    long[] words() {
+        return bits;
+    }
+
+    /**
+     * @return boolean[][], where flooded cells are true, otherwise false
+     */
+    public boolean[][] toArray() {
+        var result = new boolean[rows][cols];
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                result[row][col] = get(row, col);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,206 @@
+package tides;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * This class is a map of how likely each cell is to flood when the future
+ * water height is uncertain, found by sampling many water heights from a
+ * distribution (a Monte Carlo estimate).
+ *
+ * A cell floods at a sampled height exactly when its flood level is at or
+ * below it, so a cell's probability is the fraction of samples at or above
+ * its flood level. With the samples sorted that is one binary search per
+ * cell, however many samples there are. Cells are split into bands of rows
+ * that are worked on in parallel.
+ */
+public final class FloodRisk {
+    /* Rows of cells handed to a thread at a time. */
+    private static final int BAND_ROWS = 64;
+
+    private final FloodLevels floodLevels;
+    private final int rows;
+    private final int cols;
+    private final float[] probability;
+    private final double[] samples;
+    private final double expectedLand;
+
+    private FloodRisk(FloodLevels floodLevels, float[] probability, double[] samples, double expectedLand) {
+        this.floodLevels = floodLevels;
+        this.rows = floodLevels.rows();
+        this.cols = floodLevels.cols();
+        this.probability = probability;
+        this.samples = samples;
+        this.expectedLand = expectedLand;
+    }
+
+    /**
+     * Returns a normal distribution of water heights, e.g. a sea level
+     * projection of 0.8 meters plus or minus 0.3.
+     *
+     * @param mean water height
+     * @param standardDeviation of the water height
+     * @param random source of randomness, seeded for repeatable maps
+     * @return DoubleSupplier, which draws one water height per call
+     */
+    public static DoubleSupplier normal(double mean, double standardDeviation, Random random) {
+        return () -> mean + standardDeviation * random.nextGaussian();
+    }
+
+    /**
+     * Draws water heights from a distribution and computes the risk map.
+     *
+     * @param floodLevels of every cell on the terrain
+     * @param distribution of the water height, drawn from once per sample
+     * @param sampleCount number of water heights to draw
+     * @param threads number of threads to work on
+     * @return FloodRisk, the probability of each cell flooding
+     */
+    public static FloodRisk compute(FloodLevels floodLevels, DoubleSupplier distribution, int sampleCount,
+            int threads) {
+        if (sampleCount <= 0)
+            throw new IllegalArgumentException("Need at least one sample: " + sampleCount);
+
+        var samples = new double[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            samples[i] = distribution.getAsDouble();
+        }
+        return compute(floodLevels, samples, threads);
+    }
+
+    /**
+     * Computes the risk map for water heights already sampled.
+     *
+     * @param floodLevels of every cell on the terrain
+     * @param samples of the water height, each equally likely
+     * @param threads number of threads to work on
+     * @return FloodRisk, the probability of each cell flooding
+     */
+    public static FloodRisk compute(FloodLevels floodLevels, double[] samples, int threads) {
+        if (samples.length == 0)
+            throw new IllegalArgumentException("Need at least one sample.");
+
+        int rows = floodLevels.rows();
+        int cols = floodLevels.cols();
+        double[] levels = floodLevels.levels();
+        double[] sorted = samples.clone();
+        Arrays.sort(sorted);
+
+        var probability = new float[levels.length];
+        int bands = (rows + BAND_ROWS - 1) / BAND_ROWS;
+        var landPerBand = new double[bands];
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, bands)));
+        try {
+            var tasks = new ArrayList<Callable<Void>>();
+            for (int band = 0; band < bands; band++) {
+                int from = band * BAND_ROWS * cols;
+                int to = Math.min(rows, (band + 1) * BAND_ROWS) * cols;
+                int b = band;
+                tasks.add(() -> {
+                    /* The expected land is the sum over cells of the chance each stays dry. */
+                    double land = 0;
+                    for (int cell = from; cell < to; cell++) {
+                        int below = lowerBound(sorted, levels[cell]);
+                        double p = (double) (sorted.length - below) / sorted.length;
+                        probability[cell] = (float) p;
+                        land += 1 - p;
+                    }
+                    landPerBand[b] = land;
+                    return null;
+                });
+            }
+            for (Future<Void> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while computing flood risk.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error computing flood risk.", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        double expectedLand = 0;
+        for (double land : landPerBand) {
+            expectedLand += land;
+        }
+        return new FloodRisk(floodLevels, probability, sorted, expectedLand);
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int cols() {
+        return cols;
+    }
+
+    /**
+     * @param row of the cell
+     * @param col of the cell
+     * @return double, the fraction of sampled water heights that flood the cell
+     */
+    public double probability(int row, int col) {
+        return probability[row * cols + col];
+    }
+
+    /**
+     * @return int, the number of water heights sampled
+     */
+    public int sampleCount() {
+        return samples.length;
+    }
+
+    /**
+     * @return double[], the sampled water heights from lowest to highest (a copy)
+     */
+    public double[] samples() {
+        return samples.clone();
+    }
+
+    /**
+     * @return double, the mean over the samples of totalVisibleLand
+     */
+    public double expectedLand() {
+        return expectedLand;
+    }
+
+    /**
+     * Same as landLost, averaged over the sampled future water heights.
+     *
+     * @param height of the water now
+     * @return double, the expected number of cells of land lost (negative if gained)
+     */
+    public double expectedLandLost(double height) {
+        return floodLevels.landCells(height) - expectedLand;
+    }
+
+    /**
+     * @param probability threshold, e.g. 0.5
+     * @return FloodMask, where cells at least that likely to flood are set
+     */
+    public FloodMask atLeast(double probability) {
+        var mask = new FloodMask(rows, cols);
+        for (int cell = 0; cell < this.probability.length; cell++) {
+            if (this.probability[cell] >= probability)
+                mask.set(cell / cols, cell % cols);
+        }
+        return mask;
+    }
+
+    /* The number of sorted values below key. */
+    private static int lowerBound(double[] sorted, double key) {
+        int low = 0, high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+}
@@ -0,0 +1,649 @@
+package tides;
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * This class keeps the flooding of a terrain at one water height up to date 
+ * while the terrain is edited or its water sources change, for "what if we 
+ * raise this block" or "what if this barrier breaks" scenarios.
+ * 
+ * It keeps every cell's flood level (see FloodLevels), the neighbor each 
+ * cell's level came from, the land count and a label for every island. When 
+ * heights in a region change or a source is removed, only the cells whose 
+ * flood level came through that region or source are recomputed; adding a 
+ * source only spreads outward from it. Island labels are kept in a 
+ * union-find, so newly dry land joins or merges islands in constant time; 
+ * newly flooded land only costs a search from the cells around it that stops 
+ * as soon as they are found to be still connected, and when an island really 
+ * splits only the smaller pieces are relabelled.
+ * 
+ * Edits change the heights of the Terrain passed in. RisingTides objects made 
+ * from the same Terrain keep their own indexes and won't see the edits.
+ */
+public final class FloodScenario {
+    private final double[][] heights;
+    private final int rows;
+    private final int cols;
+
+    /* Number of water sources at each cell. */
+    private final int[] sources;
+
+    /* Flood level of each cell, and the direction it came from (NONE for sources and dry cells). */
+    private final double[] levels;
+    private final byte[] from;
+
+    private static final byte NONE = -1;
+    private static final int[] ROW_STEP = { -1, 1, 0, 0 };
+    private static final int[] COL_STEP = { 0, 0, -1, 1 };
+
+    private double waterHeight;
+    private int land;
+
+    /*
+     * Island label of each cell, 0 for flooded cells. Labels that have merged 
+     * are joined in islandParent, so a cell's island is the root of its label. 
+     * Labels aren't reused, so they needn't be 1..islands.
+     */
+    private final int[] islandOf;
+    private int[] islandParent = new int[16];
+    private int islands;
+    private int nextIsland;
+
+    /* Marks for the searches that relabel islands; values above a search's base are its own. */
+    private final int[] markOf;
+    private int mark = 0;
+
+    /* Cells touched by the edit in progress, with their flood level before it. */
+    private final int[] touchedIn;
+    private int edit = 0;
+    private IntList touched = new IntList();
+    private double[] oldLevels = new double[64];
+
+    /**
+     * @param terrain to edit; its heights are changed in place
+     * @param waterHeight to keep the flooding up to date for
+     */
+    public FloodScenario(Terrain terrain, double waterHeight) {
+        this.heights = terrain.heights;
+        this.rows = heights.length;
+        this.cols = rows == 0 ? 0 : heights[0].length;
+        if ((long) rows * cols > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Grid is too large: " + rows + " x " + cols);
+
+        int cells = rows * cols;
+        this.sources = new int[cells];
+        this.levels = new double[cells];
+        this.from = new byte[cells];
+        this.islandOf = new int[cells];
+        this.markOf = new int[cells];
+        this.touchedIn = new int[cells];
+        Arrays.fill(levels, Double.POSITIVE_INFINITY);
+        Arrays.fill(from, NONE);
+
+        var heap = new FloodLevels.CellHeap();
+        for (GridLocation source : terrain.sources) {
+            int cell = source.row * cols + source.col;
+            sources[cell]++;
+            offer(heap, cell, heights[source.row][source.col], NONE);
+        }
+        propagate(heap);
+        setWaterHeight(waterHeight);
+    }
+
+    /**
+     * Changes the water height, recounting land and islands over the whole terrain.
+     * 
+     * @param waterHeight to keep the flooding up to date for
+     */
+    public void setWaterHeight(double waterHeight) {
+        this.waterHeight = waterHeight;
+
+        FloodMask flooded = floodedMask();
+        land = (int) (levels.length - flooded.cardinality());
+
+        IslandLabeling labeling = IslandLabeling.label(new ArrayHeightGrid(heights), flooded);
+        System.arraycopy(labeling.labels(), 0, islandOf, 0, islandOf.length);
+        islands = labeling.count();
+        nextIsland = 1;
+        islandParent = new int[Math.max(16, islands + 1)];
+        for (int i = 0; i < islands; i++) {
+            newIsland();
+        }
+    }
+
+    public double waterHeight() {
+        return waterHeight;
+    }
+
+    /**
+     * @return int, the number of cells above water
+     */
+    public int totalVisibleLand() {
+        return land;
+    }
+
+    /**
+     * @return int, the number of islands
+     */
+    public int numOfIslands() {
+        return islands;
+    }
+
+    /**
+     * @param cell location
+     * @return boolean, true if the cell is flooded
+     */
+    public boolean isFlooded(GridLocation cell) {
+        return levels[cell.row * cols + cell.col] <= waterHeight;
+    }
+
+    /**
+     * @return FloodMask, the cells flooded at the current water height
+     */
+    public FloodMask floodedMask() {
+        FloodMask flooded = new FloodMask(rows, cols);
+        GridKernels.floodMask(levels, waterHeight, flooded);
+        return flooded;
+    }
+
+    /**
+     * @return GridLocation[], the current water sources
+     */
+    public GridLocation[] sources() {
+        var result = new ArrayList<GridLocation>();
+        for (int cell = 0; cell < sources.length; cell++) {
+            for (int i = 0; i < sources[cell]; i++) {
+                result.add(new GridLocation(cell / cols, cell % cols));
+            }
+        }
+        return result.toArray(new GridLocation[0]);
+    }
+
+    /**
+     * Adds a water source. The flooded area can only grow, so this only 
+     * spreads outward from the new source.
+     * 
+     * @param source location of the new source
+     * @return FloodDelta, how the flooding changed
+     */
+    public FloodDelta addSource(GridLocation source) {
+        int cell = cellOf(source);
+        beginEdit();
+        sources[cell]++;
+        return reflood(new IntList(), cell);
+    }
+
+    /**
+     * Removes a water source. Only the cells whose water came from it are 
+     * flooded again from the remaining sources.
+     * 
+     * @param source location of a current source
+     * @return FloodDelta, how the flooding changed
+     * @throws IllegalArgumentException if there is no source there
+     */
+    public FloodDelta removeSource(GridLocation source) {
+        int cell = cellOf(source);
+        if (sources[cell] == 0)
+            throw new IllegalArgumentException("There is no water source at " + source + ".");
+
+        beginEdit();
+        sources[cell]--;
+        return reflood(invalidateFrom(IntList.of(cell)), -1);
+    }
+
+    /**
+     * Moves a water source, as one change.
+     * 
+     * @param source location of a current source
+     * @param destination location to move it to
+     * @return FloodDelta, how the flooding changed
+     * @throws IllegalArgumentException if there is no source at the first location
+     */
+    public FloodDelta moveSource(GridLocation source, GridLocation destination) {
+        int cell = cellOf(source);
+        int target = cellOf(destination);
+        if (sources[cell] == 0)
+            throw new IllegalArgumentException("There is no water source at " + source + ".");
+
+        beginEdit();
+        sources[cell]--;
+        sources[target]++;
+        return reflood(invalidateFrom(IntList.of(cell)), target);
+    }
+
+    private int cellOf(GridLocation location) {
+        if (location.row < 0 || location.row >= rows || location.col < 0 || location.col >= cols)
+            throw new IndexOutOfBoundsException("Cell " + location + " is outside the terrain.");
+        return location.row * cols + location.col;
+    }
+
+    /**
+     * @param cell location
+     * @return double, the lowest water height that floods the cell
+     */
+    public double floodLevel(GridLocation cell) {
+        return levels[cell.row * cols + cell.col];
+    }
+
+    /**
+     * Changes the heights of every cell in a rectangle.
+     * 
+     * @param top row of the rectangle
+     * @param left column of the rectangle
+     * @param bottom row of the rectangle (inclusive)
+     * @param right column of the rectangle (inclusive)
+     * @param change gives each cell's new height from its current height, e.g. h -> h + 2
+     * @return FloodDelta, how the flooding changed
+     */
+    public FloodDelta editRectangle(int top, int left, int bottom, int right, DoubleUnaryOperator change) {
+        var cells = new IntList();
+        for (int row = Math.max(0, top); row <= Math.min(rows - 1, bottom); row++) {
+            for (int col = Math.max(0, left); col <= Math.min(cols - 1, right); col++) {
+                cells.add(row * cols + col);
+            }
+        }
+        return edit(cells, change);
+    }
+
+    /**
+     * Changes the heights of every cell whose center is inside a polygon. The 
+     * polygon's x coordinates are columns and its y coordinates are rows.
+     * 
+     * @param polygon outlining the region to edit
+     * @param change gives each cell's new height from its current height, e.g. h -> h + 2
+     * @return FloodDelta, how the flooding changed
+     */
+    public FloodDelta editPolygon(Polygon polygon, DoubleUnaryOperator change) {
+        Rectangle bounds = polygon.getBounds();
+        var cells = new IntList();
+        for (int row = Math.max(0, bounds.y); row < Math.min(rows, bounds.y + bounds.height + 1); row++) {
+            for (int col = Math.max(0, bounds.x); col < Math.min(cols, bounds.x + bounds.width + 1); col++) {
+                if (polygon.contains(col + 0.5, row + 0.5))
+                    cells.add(row * cols + col);
+            }
+        }
+        return edit(cells, change);
+    }
+
+    private FloodDelta edit(IntList cells, DoubleUnaryOperator change) {
+        beginEdit();
+
+        /* Change the heights. */
+        for (int i = 0; i < cells.size(); i++) {
+            int cell = cells.get(i);
+            int row = cell / cols;
+            int col = cell % cols;
+            heights[row][col] = change.applyAsDouble(heights[row][col]);
+        }
+
+        return reflood(invalidateFrom(cells), -1);
+    }
+
+    /* Resets the given cells and every cell whose flood level came through them. */
+    private IntList invalidateFrom(IntList cells) {
+        var invalid = new IntList();
+        for (int i = 0; i < cells.size(); i++) {
+            invalidate(cells.get(i), invalid);
+        }
+        for (int i = 0; i < invalid.size(); i++) {
+            int cell = invalid.get(i);
+            for (int d = 0; d < 4; d++) {
+                int neighbor = neighbor(cell, d);
+                if (neighbor >= 0 && from[neighbor] == opposite(d))
+                    invalidate(neighbor, invalid);
+            }
+        }
+        return invalid;
+    }
+
+    /* Resets a cell's flood level, remembering the old one. */
+    private void invalidate(int cell, IntList invalid) {
+        if (touchedIn[cell] == edit)
+            return; // already invalidated in this edit
+        touch(cell);
+        levels[cell] = Double.POSITIVE_INFINITY;
+        from[cell] = NONE;
+        invalid.add(cell);
+    }
+
+    /*
+     * Refloods the invalidated cells from their valid neighbors and any sources 
+     * among them, plus a newly placed source if there is one (-1 if not).
+     */
+    private FloodDelta reflood(IntList invalid, int newSource) {
+        var heap = new FloodLevels.CellHeap();
+        if (newSource >= 0)
+            offer(heap, newSource, heights[newSource / cols][newSource % cols], NONE);
+
+        for (int i = 0; i < invalid.size(); i++) {
+            int cell = invalid.get(i);
+            double height = heights[cell / cols][cell % cols];
+            if (sources[cell] > 0)
+                offer(heap, cell, height, NONE);
+
+            for (int d = 0; d < 4; d++) {
+                int neighbor = neighbor(cell, d);
+                if (neighbor >= 0 && levels[neighbor] < Double.POSITIVE_INFINITY)
+                    offer(heap, cell, Math.max(levels[neighbor], height), (byte) d);
+            }
+        }
+        propagate(heap);
+        return finishEdit();
+    }
+
+    /* Lowers a cell's flood level if the offer is better, and queues it to spread further. */
+    private void offer(FloodLevels.CellHeap heap, int cell, double level, byte direction) {
+        if (level < levels[cell]) {
+            touch(cell);
+            levels[cell] = level;
+            from[cell] = direction;
+            heap.push(cell, level);
+        }
+    }
+
+    /* Settles cells from lowest level to highest, as in FloodLevels.compute. */
+    private void propagate(FloodLevels.CellHeap heap) {
+        while (!heap.isEmpty()) {
+            double level = heap.peekKey();
+            int cell = heap.pop();
+            if (level > levels[cell])
+                continue;
+
+            for (int d = 0; d < 4; d++) {
+                int neighbor = neighbor(cell, d);
+                if (neighbor >= 0) {
+                    double height = heights[neighbor / cols][neighbor % cols];
+                    offer(heap, neighbor, Math.max(level, height), opposite(d));
+                }
+            }
+        }
+    }
+
+    /* The neighbor of a cell in a direction, or -1 off the edge. */
+    private int neighbor(int cell, int direction) {
+        int row = cell / cols + ROW_STEP[direction];
+        int col = cell % cols + COL_STEP[direction];
+        return row < 0 || row >= rows || col < 0 || col >= cols ? -1 : row * cols + col;
+    }
+
+    /* The direction back to a cell from its neighbor in the given direction. */
+    private static byte opposite(int direction) {
+        return (byte) (direction ^ 1);
+    }
+
+    private void beginEdit() {
+        edit++;
+        touched = new IntList();
+    }
+
+    /* Records a cell's flood level the first time the current edit changes it. */
+    private void touch(int cell) {
+        if (touchedIn[cell] == edit)
+            return;
+        touchedIn[cell] = edit;
+        if (touched.size() == oldLevels.length)
+            oldLevels = Arrays.copyOf(oldLevels, oldLevels.length * 2);
+        oldLevels[touched.size()] = levels[cell];
+        touched.add(cell);
+    }
+
+    /* Works out which cells changed between flooded and dry, and updates land and islands. */
+    private FloodDelta finishEdit() {
+        var flooded = new IntList();
+        var dried = new IntList();
+        for (int i = 0; i < touched.size(); i++) {
+            int cell = touched.get(i);
+            boolean was = oldLevels[i] <= waterHeight;
+            boolean now = levels[cell] <= waterHeight;
+            if (was && !now)
+                dried.add(cell);
+            else if (!was && now)
+                flooded.add(cell);
+        }
+
+        land += dried.size() - flooded.size();
+        relabelIslands(flooded, dried);
+        if (nextIsland > levels.length)
+            setWaterHeight(waterHeight); // start the labels over rather than let them grow without end
+        return new FloodDelta(cols, flooded.toArray(), dried.toArray(), touched.size(), land, islands);
+    }
+
+    /*
+     * Islands can only change next to cells that changed. Newly flooded cells 
+     * are taken away first: an island that loses all its cells is gone, and 
+     * one left with more than one piece of land next to the flooded cells is 
+     * checked by splitIsland. Newly dry cells are then added one at a time, 
+     * starting an island or joining the islands around them.
+     */
+    private void relabelIslands(IntList flooded, IntList dried) {
+        if (flooded.size() > 0)
+            removeLand(flooded);
+
+        var around = new int[8];
+        for (int i = 0; i < dried.size(); i++) {
+            int cell = dried.get(i);
+            int row = cell / cols;
+            int col = cell % cols;
+            int count = 0;
+            for (int r = Math.max(0, row - 1); r <= Math.min(rows - 1, row + 1); r++) {
+                for (int c = Math.max(0, col - 1); c <= Math.min(cols - 1, col + 1); c++) {
+                    int label = islandOf[r * cols + c];
+                    if (label != 0)
+                        around[count++] = findIsland(label);
+                }
+            }
+
+            if (count == 0) {
+                islandOf[cell] = newIsland();
+                islands++;
+                continue;
+            }
+            int island = around[0];
+            for (int j = 1; j < count; j++) {
+                int other = findIsland(around[j]);
+                if (other != island) {
+                    islandParent[other] = island;
+                    islands--;
+                }
+            }
+            islandOf[cell] = island;
+        }
+    }
+
+    /* Takes newly flooded cells out of their islands, counting islands that vanish or split. */
+    private void removeLand(IntList flooded) {
+        /* The islands that lost cells, and the land left next to the lost cells, by island. */
+        var lost = new int[flooded.size()];
+        for (int i = 0; i < flooded.size(); i++) {
+            int cell = flooded.get(i);
+            lost[i] = findIsland(islandOf[cell]);
+            islandOf[cell] = 0;
+        }
+
+        int seen = newMarks(1);
+        var seeds = new long[16];
+        int seedCount = 0;
+        for (int i = 0; i < flooded.size(); i++) {
+            int cell = flooded.get(i);
+            int row = cell / cols;
+            int col = cell % cols;
+            for (int r = Math.max(0, row - 1); r <= Math.min(rows - 1, row + 1); r++) {
+                for (int c = Math.max(0, col - 1); c <= Math.min(cols - 1, col + 1); c++) {
+                    int next = r * cols + c;
+                    if (islandOf[next] == 0 || levels[next] <= waterHeight || markOf[next] == seen)
+                        continue; // flooded, newly dry or already a seed
+                    markOf[next] = seen;
+                    if (seedCount == seeds.length)
+                        seeds = Arrays.copyOf(seeds, seedCount * 2);
+                    seeds[seedCount++] = (long) findIsland(islandOf[next]) << 32 | next;
+                }
+            }
+        }
+        Arrays.sort(lost);
+        Arrays.sort(seeds, 0, seedCount);
+
+        /* Walk both in island order: an island with no seeds is gone, one with several may have split. */
+        int seed = 0;
+        for (int i = 0; i < lost.length; i++) {
+            if (i > 0 && lost[i] == lost[i - 1])
+                continue;
+            while (seed < seedCount && (int) (seeds[seed] >>> 32) < lost[i]) {
+                seed++;
+            }
+            int first = seed;
+            while (seed < seedCount && (int) (seeds[seed] >>> 32) == lost[i]) {
+                seed++;
+            }
+            if (first == seed)
+                islands--;
+            else if (seed - first > 1)
+                splitIsland(seeds, first, seed);
+        }
+    }
+
+    /*
+     * Checks whether the land around flooded cells of one island, seeds[from] 
+     * to seeds[to - 1], is still connected. A search runs from every seed at 
+     * once, a cell at a time in turn, and searches that meet are joined. It 
+     * stops when only one group of searches is still going; each group that 
+     * ran out of cells before that is a piece cut off from the rest, and gets 
+     * a new label. Since searches take turns, those are the smaller pieces, 
+     * so the work is proportional to the land that actually changes island.
+     */
+    private void splitIsland(long[] seeds, int from, int to) {
+        int count = to - from;
+        int base = newMarks(count);
+        var queues = new IntList[count];
+        var heads = new int[count];
+        var group = new int[count];  // union-find over the searches
+        var active = new int[count]; // searches in each group with cells left
+        for (int i = 0; i < count; i++) {
+            int cell = (int) seeds[from + i];
+            queues[i] = IntList.of(cell);
+            markOf[cell] = base + i;
+            group[i] = i;
+            active[i] = 1;
+        }
+
+        int open = count;
+        while (open > 1) {
+            for (int i = 0; i < count && open > 1; i++) {
+                if (heads[i] == queues[i].size())
+                    continue;
+
+                int cell = queues[i].get(heads[i]++);
+                int row = cell / cols;
+                int col = cell % cols;
+                for (int r = Math.max(0, row - 1); r <= Math.min(rows - 1, row + 1); r++) {
+                    for (int c = Math.max(0, col - 1); c <= Math.min(cols - 1, col + 1); c++) {
+                        int next = r * cols + c;
+                        if (islandOf[next] == 0 || levels[next] <= waterHeight)
+                            continue;
+                        if (markOf[next] < base) {
+                            markOf[next] = base + i;
+                            queues[i].add(next);
+                            continue;
+                        }
+                        int mine = findGroup(group, i);
+                        int theirs = findGroup(group, markOf[next] - base);
+                        if (mine != theirs) {
+                            group[theirs] = mine;
+                            active[mine] += active[theirs];
+                            open--;
+                        }
+                    }
+                }
+
+                if (heads[i] == queues[i].size()) {
+                    int finished = findGroup(group, i);
+                    if (--active[finished] == 0 && open > 1) {
+                        /* Cut off: give this piece its own island. */
+                        int island = newIsland();
+                        islands++;
+                        open--;
+                        for (int j = 0; j < count; j++) {
+                            if (findGroup(group, j) != finished)
+                                continue;
+                            for (int q = 0; q < queues[j].size(); q++) {
+                                islandOf[queues[j].get(q)] = island;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /* A new island label, its own root. */
+    private int newIsland() {
+        if (nextIsland == islandParent.length)
+            islandParent = Arrays.copyOf(islandParent, nextIsland * 2);
+        islandParent[nextIsland] = nextIsland;
+        return nextIsland++;
+    }
+
+    /* The root of an island label, halving the path on the way. */
+    private int findIsland(int label) {
+        while (islandParent[label] != label) {
+            islandParent[label] = islandParent[islandParent[label]];
+            label = islandParent[label];
+        }
+        return label;
+    }
+
+    private static int findGroup(int[] group, int i) {
+        while (group[i] != i) {
+            group[i] = group[group[i]];
+            i = group[i];
+        }
+        return i;
+    }
+
+    /* Reserves count mark values above every mark in use, and returns the first. */
+    private int newMarks(int count) {
+        if (mark > Integer.MAX_VALUE - count - 1) {
+            Arrays.fill(markOf, 0);
+            mark = 0;
+        }
+        int first = mark + 1;
+        mark += count;
+        return first;
+    }
+
+    /* A growable list of ints, also used as a queue by walking it with an index. */
+    private static final class IntList {
+        private int[] values = new int[16];
+        private int size = 0;
+
+        static IntList of(int value) {
+            var list = new IntList();
+            list.add(value);
+            return list;
+        }
+
+        void add(int value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
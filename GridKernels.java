@@ -0,0 +1,138 @@
+package tides;
+
+/**
+ * This class holds the tight loops that scan whole grids: minimum and maximum 
+ * height, counting cells above a water height, and building a flood mask from 
+ * flood levels.
+ * 
+ * The loops here are written without branches (comparisons become conditional 
+ * moves) and without Math.min/Math.max, whose NaN and -0.0 handling costs more 
+ * than the comparison itself. They run on plain arrays and need no extra 
+ * modules.
+ * 
+ * When the JVM is started with --add-modules jdk.incubator.vector and the 
+ * VectorKernels class (in incubator/, compiled separately since it needs that 
+ * module) is on the class path, the same loops run on SIMD vectors instead. 
+ * It is looked up reflectively, so without either one nothing changes.
+ */
+final class GridKernels {
+    /* The loops, so that a SIMD version can stand in for the scalar one. */
+    interface Kernels {
+        double[] extrema(double[][] values);
+
+        long countAbove(double[] values, double threshold);
+
+        void floodMask(double[] levels, double height, FloodMask flooded);
+    }
+
+    private static final Kernels SCALAR = new Scalar();
+    private static final Kernels VECTOR = loadVector();
+    private static final Kernels KERNELS = VECTOR != null ? VECTOR : SCALAR;
+
+    private GridKernels() {
+    }
+
+    /**
+     * @param values to scan; none may be NaN
+     * @return double[], the lowest and highest value, or (+inf, -inf) if there are none
+     */
+    static double[] extrema(double[][] values) {
+        return KERNELS.extrema(values);
+    }
+
+    /**
+     * @param values to scan
+     * @param threshold to compare against
+     * @return long, how many values are greater than the threshold
+     */
+    static long countAbove(double[] values, double threshold) {
+        return KERNELS.countAbove(values, threshold);
+    }
+
+    /**
+     * Fills a flood mask with every cell whose flood level is at or below the 
+     * water height, 64 cells at a time.
+     * 
+     * @param levels of each cell in row-major order, as in FloodLevels
+     * @param height of the water
+     * @param flooded mask of the same grid; its previous contents are replaced
+     */
+    static void floodMask(double[] levels, double height, FloodMask flooded) {
+        KERNELS.floodMask(levels, height, flooded);
+    }
+
+    /* The scalar loops, always available. */
+    static Kernels scalar() {
+        return SCALAR;
+    }
+
+    /* The SIMD loops, or null if the vector module or VectorKernels isn't there. */
+    static Kernels vector() {
+        return VECTOR;
+    }
+
+    /* The loops in use. */
+    static Kernels active() {
+        return KERNELS;
+    }
+
+    private static Kernels loadVector() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty())
+            return null;
+        try {
+            return (Kernels) Class.forName("tides.VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            return null; // the module is there but VectorKernels wasn't compiled
+        } catch (ReflectiveOperationException | LinkageError e) {
+            System.err.println("Cannot load the vector kernels; falling back on scalar loops. (" + e + ")");
+            return null;
+        }
+    }
+
+    private static final class Scalar implements Kernels {
+        @Override
+        public double[] extrema(double[][] values) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (double[] row : values) {
+                for (double value : row) {
+                    min = value < min ? value : min;
+                    max = value > max ? value : max;
+                }
+            }
+            return new double[] { min, max };
+        }
+
+        @Override
+        public long countAbove(double[] values, double threshold) {
+            long count = 0;
+            for (double value : values) {
+                count += value > threshold ? 1 : 0;
+            }
+            return count;
+        }
+
+        @Override
+        public void floodMask(double[] levels, double height, FloodMask flooded) {
+            long[] words = flooded.words();
+            int full = levels.length >>> 6;
+            for (int w = 0; w < full; w++) {
+                int base = w << 6;
+                long word = 0;
+                for (int bit = 0; bit < 64; bit++) {
+                    word |= (levels[base + bit] <= height ? 1L : 0L) << bit;
+                }
+                words[w] = word;
+            }
+
+            if ((levels.length & 63) != 0) {
+                int base = full << 6;
+                long word = 0;
+                for (int bit = 0; base + bit < levels.length; bit++) {
+                    word |= (levels[base + bit] <= height ? 1L : 0L) << bit;
+                }
+                words[full] = word;
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package tides;
+
+/**
+ * This interface represents a read-only grid of terrain heights.
+ * 
+ * It lets the flooding, island and drawing code run the same way over a 
+ * terrain held in a double[][] and over a tiled terrain that is paged in from 
+ * disk on demand.
+ */
+public interface HeightGrid {
+
+    /**
+     * @return int, the number of rows in the grid
+     */
+    int rows();
+
+    /**
+     * @return int, the number of columns in the grid
+     */
+    int cols();
+
+    /**
+     * @param row of the cell
+     * @param col of the cell
+     * @return double, the height of the terrain at that cell
+     */
+    double height(int row, int col);
+}
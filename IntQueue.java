@@ -0,0 +1,60 @@
+package tides;
+
+import java.util.*;
+
+/**
+ * This class is a first-in first-out queue of ints kept in a ring buffer that 
+ * doubles when full. The flood and island code queue cells by packed id 
+ * (row * cols + col), so a whole floodfill allocates only this buffer rather 
+ * than a GridLocation per cell.
+ */
+final class IntQueue {
+    private int[] values;
+    private int head = 0; // index of the first value
+    private int size = 0;
+
+    IntQueue() {
+        this(64);
+    }
+
+    IntQueue(int capacity) {
+        values = new int[Math.max(1, capacity)];
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void add(int value) {
+        if (size == values.length) {
+            /* Unwrap the ring into a buffer twice the size. */
+            int[] grown = new int[values.length * 2];
+            int tail = values.length - head;
+            System.arraycopy(values, head, grown, 0, tail);
+            System.arraycopy(values, 0, grown, tail, head);
+            values = grown;
+            head = 0;
+        }
+        values[(head + size) % values.length] = value;
+        size++;
+    }
+
+    int remove() {
+        if (size == 0)
+            throw new NoSuchElementException("The queue is empty.");
+
+        int value = values[head];
+        head = (head + 1) % values.length;
+        size--;
+        return value;
+    }
+
+    void clear() {
+        head = 0;
+        size = 0;
+    }
+}
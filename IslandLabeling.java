@@ -0,0 +1,272 @@
+package tides;
+
+import java.util.*;
+
+/**
+ * This class labels every island on a flooded terrain and keeps a few 
+ * statistics about each one: its size, bounding box, peak and centroid.
+ * 
+ * Islands are numbered 1 to count() in the order their first cell appears 
+ * scanning row by row; flooded cells are labelled 0. As in numOfIslands, land 
+ * cells touching in any of the 8 directions are part of the same island.
+ * 
+ * Labels are found with a two-pass scan: the first pass gives each land cell 
+ * a provisional label from a land neighbor above or to its left (or a new 
+ * one), records which provisional labels touch, and adds the cell to its 
+ * label's statistics. The second pass replaces provisional labels with final 
+ * island numbers and combines the statistics of labels that were joined.
+ */
+public final class IslandLabeling {
+    private final int rows;
+    private final int cols;
+    private final int[] labels;
+
+    /* Per-island statistics, indexed by island number (index 0 is unused). */
+    private final int count;
+    private final int[] cells;
+    private final int[] minRow, minCol, maxRow, maxCol;
+    private final double[] peak;
+    private final long[] rowSum, colSum;
+
+    private IslandLabeling(int rows, int cols, int[] labels, int count) {
+        this.rows = rows;
+        this.cols = cols;
+        this.labels = labels;
+        this.count = count;
+        this.cells = new int[count + 1];
+        this.minRow = new int[count + 1];
+        this.minCol = new int[count + 1];
+        this.maxRow = new int[count + 1];
+        this.maxCol = new int[count + 1];
+        this.peak = new double[count + 1];
+        this.rowSum = new long[count + 1];
+        this.colSum = new long[count + 1];
+    }
+
+    /**
+     * Labels the islands of the land (cells not flooded) on a terrain.
+     * 
+     * @param terrain heights, used for each island's peak
+     * @param flooded cells of the terrain
+     * @return IslandLabeling, the labels and statistics of every island
+     */
+    public static IslandLabeling label(HeightGrid terrain, FloodMask flooded) {
+        int rows = terrain.rows();
+        int cols = terrain.cols();
+        if (flooded.rows() != rows || flooded.cols() != cols)
+            throw new IllegalArgumentException("Flood mask doesn't match the terrain.");
+        if ((long) rows * cols > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Grid is too large to label: " + rows + " x " + cols);
+
+        var labels = new int[rows * cols];
+        var stats = new Provisional();
+
+        /* First pass: provisional labels, which labels touch, and statistics per label. */
+        for (int row = 0; row < rows; row++) {
+            int base = row * cols;
+            for (int col = 0; col < cols; col++) {
+                if (flooded.get(row, col))
+                    continue;
+
+                int label = 0;
+                if (col > 0)
+                    label = stats.join(label, labels[base + col - 1]);
+                if (row > 0) {
+                    int above = base - cols;
+                    for (int c = Math.max(0, col - 1); c <= Math.min(cols - 1, col + 1); c++) {
+                        label = stats.join(label, labels[above + c]);
+                    }
+                }
+                if (label == 0)
+                    label = stats.newLabel();
+
+                labels[base + col] = label;
+                stats.add(label, row, col, terrain.height(row, col));
+            }
+        }
+
+        /* Number the islands in scan order and fold in the statistics of joined labels. */
+        var island = new int[stats.labels + 1];
+        int count = 0;
+        for (int label = 1; label <= stats.labels; label++) {
+            int root = stats.find(label);
+            if (island[root] == 0)
+                island[root] = ++count;
+            island[label] = island[root];
+        }
+
+        var result = new IslandLabeling(rows, cols, labels, count);
+        Arrays.fill(result.minRow, Integer.MAX_VALUE);
+        Arrays.fill(result.minCol, Integer.MAX_VALUE);
+        Arrays.fill(result.maxRow, -1);
+        Arrays.fill(result.maxCol, -1);
+        Arrays.fill(result.peak, Double.NEGATIVE_INFINITY);
+        for (int label = 1; label <= stats.labels; label++) {
+            result.merge(island[label], stats, label);
+        }
+
+        /* Second pass: final island numbers. */
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = island[labels[i]];
+        }
+        return result;
+    }
+
+    private void merge(int island, Provisional stats, int label) {
+        cells[island] += stats.cells[label];
+        minRow[island] = Math.min(minRow[island], stats.minRow[label]);
+        minCol[island] = Math.min(minCol[island], stats.minCol[label]);
+        maxRow[island] = Math.max(maxRow[island], stats.maxRow[label]);
+        maxCol[island] = Math.max(maxCol[island], stats.maxCol[label]);
+        peak[island] = Math.max(peak[island], stats.peak[label]);
+        rowSum[island] += stats.rowSum[label];
+        colSum[island] += stats.colSum[label];
+    }
+
+    /* Provisional labels from the first pass: a union-find plus statistics per label. */
+    private static final class Provisional {
+        int labels = 0;
+        int[] parent = new int[64];
+        int[] cells = new int[64];
+        int[] minRow = new int[64], minCol = new int[64], maxRow = new int[64], maxCol = new int[64];
+        double[] peak = new double[64];
+        long[] rowSum = new long[64], colSum = new long[64];
+
+        int newLabel() {
+            int label = ++labels;
+            if (label == parent.length) {
+                int size = parent.length * 2;
+                parent = Arrays.copyOf(parent, size);
+                cells = Arrays.copyOf(cells, size);
+                minRow = Arrays.copyOf(minRow, size);
+                minCol = Arrays.copyOf(minCol, size);
+                maxRow = Arrays.copyOf(maxRow, size);
+                maxCol = Arrays.copyOf(maxCol, size);
+                peak = Arrays.copyOf(peak, size);
+                rowSum = Arrays.copyOf(rowSum, size);
+                colSum = Arrays.copyOf(colSum, size);
+            }
+            parent[label] = label;
+            minRow[label] = Integer.MAX_VALUE;
+            minCol[label] = Integer.MAX_VALUE;
+            maxRow[label] = -1;
+            maxCol[label] = -1;
+            peak[label] = Double.NEGATIVE_INFINITY;
+            return label;
+        }
+
+        void add(int label, int row, int col, double height) {
+            cells[label]++;
+            minRow[label] = Math.min(minRow[label], row);
+            minCol[label] = Math.min(minCol[label], col);
+            maxRow[label] = Math.max(maxRow[label], row);
+            maxCol[label] = Math.max(maxCol[label], col);
+            peak[label] = Math.max(peak[label], height);
+            rowSum[label] += row;
+            colSum[label] += col;
+        }
+
+        /* Returns the label a cell should take given its current label and a neighbor's. */
+        int join(int label, int neighbor) {
+            if (neighbor == 0)
+                return label;
+            if (label == 0)
+                return neighbor;
+
+            int root1 = find(label);
+            int root2 = find(neighbor);
+            if (root1 != root2)
+                parent[Math.max(root1, root2)] = Math.min(root1, root2);
+            return label;
+        }
+
+        int find(int label) {
+            while (parent[label] != label) {
+                parent[label] = parent[parent[label]];
+                label = parent[label];
+            }
+            return label;
+        }
+    }
+
+    /**
+     * @return int, representing the total number of islands
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @param row of the cell
+     * @param col of the cell
+     * @return int, the island the cell is part of, or 0 if it is flooded
+     */
+    public int islandAt(int row, int col) {
+        if (row < 0 || row >= rows || col < 0 || col >= cols)
+            throw new IndexOutOfBoundsException("Cell " + row + ", " + col + " is outside the terrain.");
+        return labels[row * cols + col];
+    }
+
+    /**
+     * @return int[], the island of every cell in row-major order, 0 for flooded cells (not a copy)
+     */
+    public int[] labels() {
+        return labels;
+    }
+
+    /**
+     * @param island number, from 1 to count()
+     * @return int, the number of cells in the island
+     */
+    public int cellCount(int island) {
+        return cells[check(island)];
+    }
+
+    /**
+     * @param island number, from 1 to count()
+     * @return GridLocation, the top-left corner of the island's bounding box
+     */
+    public GridLocation boundsMin(int island) {
+        check(island);
+        return new GridLocation(minRow[island], minCol[island]);
+    }
+
+    /**
+     * @param island number, from 1 to count()
+     * @return GridLocation, the bottom-right corner of the island's bounding box (inclusive)
+     */
+    public GridLocation boundsMax(int island) {
+        check(island);
+        return new GridLocation(maxRow[island], maxCol[island]);
+    }
+
+    /**
+     * @param island number, from 1 to count()
+     * @return double, the height of the island's highest cell
+     */
+    public double peakElevation(int island) {
+        return peak[check(island)];
+    }
+
+    /**
+     * @param island number, from 1 to count()
+     * @return double, the mean row of the island's cells
+     */
+    public double centroidRow(int island) {
+        return (double) rowSum[check(island)] / cells[island];
+    }
+
+    /**
+     * @param island number, from 1 to count()
+     * @return double, the mean column of the island's cells
+     */
+    public double centroidCol(int island) {
+        return (double) colSum[check(island)] / cells[island];
+    }
+
+    private int check(int island) {
+        if (island < 1 || island > count)
+            throw new IndexOutOfBoundsException("No island " + island + "; there are " + count + ".");
+        return island;
+    }
+}
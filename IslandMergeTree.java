@@ -0,0 +1,416 @@
+package tides;
+
+import java.util.*;
+
+/**
+ * This class records how the islands of a terrain split apart and disappear 
+ * as the water rises, so questions about islands at any water height can be 
+ * answered without flooding the terrain again.
+ * 
+ * The tree is built once by adding cells from the highest flood level to the 
+ * lowest (the terrain "drying out") and joining each one to its land 
+ * neighbors in all 8 directions with a WeightedQuickUnionUF. A cell that 
+ * touches no land starts a new island; a cell that touches several islands 
+ * joins them, which is recorded as a new node whose children are the islands 
+ * it joined.
+ * 
+ * Read the other way, as the water rises: each node is an island that exists 
+ * for water heights from startHeight(island) (inclusive) up to 
+ * endHeight(island) (exclusive). At endHeight it either splits into its 
+ * children or, if it has none, goes underwater.
+ */
+public final class IslandMergeTree {
+    /* Side of the tiles islandsIn summarizes, in cells. */
+    private static final int TILE_SIZE = 32;
+
+    private final int cols;
+    private final double[] levels;
+
+    /* The smallest node containing each cell, indexed by row * cols + col. */
+    private final int[] cellNode;
+
+    /* Nodes: the height each one ends at, its parent (-1 for none), and jump pointers. */
+    private int nodes = 0;
+    private double[] endHeight = new double[64];
+    private int[] parent = new int[64];
+    private int[] jump;
+
+    /* Distinct flood levels from highest to lowest, and how many islands exist just below each. */
+    private double[] groupLevel;
+    private int[] groupIslands;
+
+    /*
+     * Per tile of TILE_SIZE x TILE_SIZE cells, the distinct nodes its cells 
+     * start in, each with the highest flood level among those cells: tile t's 
+     * are tileNode[tileStart[t]] up to tileNode[tileStart[t + 1]]. Built the 
+     * first time a window is asked about.
+     */
+    private int[] tileStart;
+    private int[] tileNode;
+    private double[] tileLevel;
+
+    private IslandMergeTree(int cols, double[] levels, int[] cellNode) {
+        this.cols = cols;
+        this.levels = levels;
+        this.cellNode = cellNode;
+    }
+
+    /* Rebuilds a tree from the parts TerrainIndex saved; the jump pointers are recomputed. */
+    static IslandMergeTree restore(FloodLevels floodLevels, int[] cellNode, double[] endHeight, int[] parent,
+            double[] groupLevel, int[] groupIslands) {
+        var tree = new IslandMergeTree(floodLevels.cols(), floodLevels.levels(), cellNode);
+        tree.nodes = endHeight.length;
+        tree.endHeight = endHeight;
+        tree.parent = parent;
+        tree.groupLevel = groupLevel;
+        tree.groupIslands = groupIslands;
+        tree.buildJumps();
+        return tree;
+    }
+
+    /**
+     * Builds the merge tree for a terrain.
+     * 
+     * @param floodLevels of every cell on the terrain
+     * @return IslandMergeTree, the islands at every water height
+     */
+    public static IslandMergeTree build(FloodLevels floodLevels) {
+        int rows = floodLevels.rows();
+        int cols = floodLevels.cols();
+        double[] levels = floodLevels.levels();
+        int[] order = CellSort.descending(levels);
+
+        var tree = new IslandMergeTree(cols, levels, new int[levels.length]);
+        WeightedQuickUnionUF uf = new WeightedQuickUnionUF(rows, cols);
+        var added = new boolean[levels.length];
+        var rootNode = new int[levels.length]; // the node of the island whose root is this cell
+
+        var groupLevel = new double[16];
+        var groupIslands = new int[16];
+        int groups = 0;
+        int islands = 0;
+
+        var roots = new int[8];
+
+        for (int i = 0; i < order.length; i++) {
+            int cell = order[i];
+            double level = levels[cell];
+            int row = cell / cols;
+            int col = cell % cols;
+
+            /* Find the distinct islands this cell touches. */
+            int touching = 0;
+            for (int r = Math.max(0, row - 1); r <= Math.min(rows - 1, row + 1); r++) {
+                for (int c = Math.max(0, col - 1); c <= Math.min(cols - 1, col + 1); c++) {
+                    if (!added[r * cols + c])
+                        continue;
+
+                    int root = uf.find(r * cols + c);
+                    boolean seen = false;
+                    for (int k = 0; k < touching; k++) {
+                        seen |= roots[k] == root;
+                    }
+                    if (!seen)
+                        roots[touching++] = root;
+                }
+            }
+
+            int node;
+            if (touching == 1) {
+                node = rootNode[roots[0]];
+            } else {
+                node = tree.newNode(level);
+                for (int k = 0; k < touching; k++) {
+                    tree.parent[rootNode[roots[k]]] = node;
+                }
+            }
+
+            for (int k = 0; k < touching; k++) {
+                uf.union(cell, roots[k]);
+            }
+            rootNode[uf.find(cell)] = node;
+            tree.cellNode[cell] = node;
+            added[cell] = true;
+            islands += 1 - touching;
+
+            /* Record the island count once every cell at this level is in. */
+            if (i + 1 == order.length || levels[order[i + 1]] != level) {
+                if (groups == groupLevel.length) {
+                    groupLevel = Arrays.copyOf(groupLevel, groups * 2);
+                    groupIslands = Arrays.copyOf(groupIslands, groups * 2);
+                }
+                groupLevel[groups] = level;
+                groupIslands[groups] = islands;
+                groups++;
+            }
+        }
+
+        tree.groupLevel = Arrays.copyOf(groupLevel, groups);
+        tree.groupIslands = Arrays.copyOf(groupIslands, groups);
+        tree.endHeight = Arrays.copyOf(tree.endHeight, tree.nodes);
+        tree.parent = Arrays.copyOf(tree.parent, tree.nodes);
+        tree.buildJumps();
+        return tree;
+    }
+
+    private int newNode(double level) {
+        if (nodes == parent.length) {
+            endHeight = Arrays.copyOf(endHeight, nodes * 2);
+            parent = Arrays.copyOf(parent, nodes * 2);
+        }
+        endHeight[nodes] = level;
+        parent[nodes] = -1;
+        return nodes++;
+    }
+
+    /*
+     * Gives every node a jump pointer to one of its ancestors, chosen so that 
+     * finding the highest ancestor meeting a condition takes O(log n) steps 
+     * (the skew-binary scheme from Myers, "An applicative random-access stack"). 
+     * A parent is always created after its children, so walking the nodes 
+     * from last to first visits parents first.
+     */
+    private void buildJumps() {
+        jump = new int[nodes];
+        var depth = new int[nodes];
+        for (int node = nodes - 1; node >= 0; node--) {
+            int p = parent[node];
+            if (p < 0) {
+                jump[node] = node;
+                continue;
+            }
+
+            depth[node] = depth[p] + 1;
+            int j = jump[p];
+            if (depth[p] - depth[j] == depth[j] - depth[jump[j]])
+                jump[node] = jump[j];
+            else
+                jump[node] = p;
+        }
+    }
+
+    /**
+     * Counts the islands at a water height, the same count as numOfIslands.
+     * 
+     * @param height of the water
+     * @return int, representing the total number of islands
+     */
+    public int islandsAt(double height) {
+        /* Find the last group of cells whose level is above the water. */
+        int low = 0, high = groupLevel.length - 1, found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (groupLevel[mid] > height) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found < 0 ? 0 : groupIslands[found];
+    }
+
+    /**
+     * Finds the island containing a cell at a water height. The same island 
+     * is returned for every cell on it and at every height it exists at.
+     * 
+     * @param height of the water
+     * @param cell location
+     * @return int, the island's node in the tree, or -1 if the cell is flooded
+     */
+    public int islandAt(double height, GridLocation cell) {
+        int id = cell.row * cols + cell.col;
+        if (levels[id] <= height)
+            return -1;
+
+        return islandOf(height, cellNode[id]);
+    }
+
+    /* The island at a water height that contains a node existing at or below it. */
+    private int islandOf(double height, int node) {
+        /* Climb while the parent island still exists at this height. */
+        while (parent[node] >= 0 && endHeight[parent[node]] > height) {
+            node = endHeight[jump[node]] > height ? jump[node] : parent[node];
+        }
+        return node;
+    }
+
+    /**
+     * Counts the islands that have land inside a window at a water height. An 
+     * island that runs out of the window is still one island, even if the 
+     * parts inside the window don't touch each other.
+     * 
+     * Each 32 x 32 tile keeps the distinct nodes its cells start in, usually 
+     * a few dozen or fewer (about one per 20 cells on NewYorkCity), so a tile 
+     * wholly inside the window costs one climb up the tree per node rather 
+     * than a look at every cell; only the tiles cut by the window's edges are 
+     * scanned cell by cell. The tiles are summarized on the first call.
+     * 
+     * @param height of the water
+     * @param top row of the window
+     * @param left column of the window
+     * @param bottom row of the window (inclusive)
+     * @param right column of the window (inclusive)
+     * @return int, the number of islands in the window
+     */
+    public int islandsIn(double height, int top, int left, int bottom, int right) {
+        int rows = cols == 0 ? 0 : levels.length / cols;
+        top = Math.max(0, top);
+        left = Math.max(0, left);
+        bottom = Math.min(rows - 1, bottom);
+        right = Math.min(cols - 1, right);
+        if (top > bottom || left > right)
+            return 0;
+
+        summarizeTiles();
+        int tileCols = (cols + TILE_SIZE - 1) / TILE_SIZE;
+        int[] islands = new int[64];
+        int found = 0;
+        for (int tileRow = top / TILE_SIZE; tileRow <= bottom / TILE_SIZE; tileRow++) {
+            int rowStart = tileRow * TILE_SIZE, rowEnd = Math.min(rows, rowStart + TILE_SIZE) - 1;
+            for (int tileCol = left / TILE_SIZE; tileCol <= right / TILE_SIZE; tileCol++) {
+                int colStart = tileCol * TILE_SIZE, colEnd = Math.min(cols, colStart + TILE_SIZE) - 1;
+                int tile = tileRow * tileCols + tileCol;
+
+                if (rowStart >= top && rowEnd <= bottom && colStart >= left && colEnd <= right) {
+                    /* Whole tile: the island of each node that still has land here. */
+                    for (int e = tileStart[tile]; e < tileStart[tile + 1]; e++) {
+                        if (tileLevel[e] <= height)
+                            continue;
+                        if (found == islands.length)
+                            islands = Arrays.copyOf(islands, found * 2);
+                        islands[found++] = islandOf(height, tileNode[e]);
+                    }
+                } else {
+                    /* Cut by the window's edge: the island of each cell of land inside it. */
+                    for (int row = Math.max(top, rowStart); row <= Math.min(bottom, rowEnd); row++) {
+                        for (int col = Math.max(left, colStart); col <= Math.min(right, colEnd); col++) {
+                            int cell = row * cols + col;
+                            if (levels[cell] <= height)
+                                continue;
+                            int island = islandOf(height, cellNode[cell]);
+                            if (found > 0 && islands[found - 1] == island)
+                                continue;
+                            if (found == islands.length)
+                                islands = Arrays.copyOf(islands, found * 2);
+                            islands[found++] = island;
+                        }
+                    }
+                }
+            }
+        }
+
+        /* Parts in different tiles, or joined outside the window, are the same island. */
+        Arrays.sort(islands, 0, found);
+        int distinct = 0;
+        for (int i = 0; i < found; i++) {
+            if (i == 0 || islands[i] != islands[i - 1])
+                distinct++;
+        }
+        return distinct;
+    }
+
+    /* Finds each tile's distinct nodes and their highest levels, if that hasn't been done. */
+    private synchronized void summarizeTiles() {
+        if (tileStart != null)
+            return;
+
+        int rows = levels.length / cols;
+        int tileCols = (cols + TILE_SIZE - 1) / TILE_SIZE;
+        int tileRows = (rows + TILE_SIZE - 1) / TILE_SIZE;
+        var start = new int[tileRows * tileCols + 1];
+        var node = new int[Math.max(16, levels.length / 16)];
+        var level = new double[node.length];
+        var keys = new long[TILE_SIZE * TILE_SIZE];
+        int entries = 0;
+        for (int tileRow = 0; tileRow < tileRows; tileRow++) {
+            for (int tileCol = 0; tileCol < tileCols; tileCol++) {
+                start[tileRow * tileCols + tileCol] = entries;
+
+                /* Sort the tile's cells by node, then keep one entry per run. */
+                int size = 0;
+                for (int row = tileRow * TILE_SIZE; row < Math.min(rows, (tileRow + 1) * TILE_SIZE); row++) {
+                    for (int col = tileCol * TILE_SIZE; col < Math.min(cols, (tileCol + 1) * TILE_SIZE); col++) {
+                        int cell = row * cols + col;
+                        keys[size++] = (long) cellNode[cell] << 32 | cell;
+                    }
+                }
+                Arrays.sort(keys, 0, size);
+                for (int k = 0; k < size; k++) {
+                    int cellNodeAt = (int) (keys[k] >>> 32);
+                    double cellLevel = levels[(int) keys[k]];
+                    if (k > 0 && cellNodeAt == (int) (keys[k - 1] >>> 32)) {
+                        level[entries - 1] = Math.max(level[entries - 1], cellLevel);
+                        continue;
+                    }
+                    if (entries == node.length) {
+                        node = Arrays.copyOf(node, entries * 2);
+                        level = Arrays.copyOf(level, entries * 2);
+                    }
+                    node[entries] = cellNodeAt;
+                    level[entries] = cellLevel;
+                    entries++;
+                }
+            }
+        }
+        start[start.length - 1] = entries;
+
+        tileNode = Arrays.copyOf(node, entries);
+        tileLevel = Arrays.copyOf(level, entries);
+        tileStart = start;
+    }
+
+    /* The parts of the tree TerrainIndex saves (not copies). */
+    int[] cellNodes() {
+        return cellNode;
+    }
+
+    double[] endHeights() {
+        return endHeight;
+    }
+
+    int[] parents() {
+        return parent;
+    }
+
+    double[] groupLevels() {
+        return groupLevel;
+    }
+
+    int[] groupIslands() {
+        return groupIslands;
+    }
+
+    /**
+     * @return int, the number of nodes (islands at some height) in the tree
+     */
+    public int size() {
+        return nodes;
+    }
+
+    /**
+     * @param island node in the tree
+     * @return double, the lowest water height at which this island exists on its own
+     *         (negative infinity if it is never part of a larger island)
+     */
+    public double startHeight(int island) {
+        int p = parent[island];
+        return p < 0 ? Double.NEGATIVE_INFINITY : endHeight[p];
+    }
+
+    /**
+     * @param island node in the tree
+     * @return double, the water height at which this island splits or goes underwater
+     */
+    public double endHeight(int island) {
+        return endHeight[island];
+    }
+
+    /**
+     * @param island node in the tree
+     * @return int, the larger island this one is part of at lower water, or -1 if none
+     */
+    public int parent(int island) {
+        return parent[island];
+    }
+}
@@ -0,0 +1,99 @@
+package tides;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * This class times GridKernels' scalar loops against its SIMD ones on a
+ * .terrain file, such as NewYorkCity.terrain, or on a generated terrain, and
+ * checks that both give the same answers.
+ *
+ * The SIMD loops are only there when the JVM runs with --add-modules
+ * jdk.incubator.vector and VectorKernels is compiled (see VectorKernels);
+ * without them only the scalar times are printed. Each kernel runs several
+ * times to warm up, and the best of the timed rounds is reported.
+ */
+public final class KernelBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int TIMED_ROUNDS = 10;
+
+    private KernelBenchmark() {
+    }
+
+    /**
+     * Usage: KernelBenchmark [terrain file, or side in cells of a generated terrain] [water height]
+     *
+     * @param args the command line arguments
+     * @throws IOException if the terrain file can't be read
+     */
+    public static void main(String[] args) throws IOException {
+        String what = args.length > 0 ? args[0] : "2048";
+        double height = args.length > 1 ? Double.parseDouble(args[1]) : 0.0;
+
+        Terrain terrain;
+        if (what.matches("\\d+")) {
+            int side = Integer.parseInt(what);
+            terrain = new TerrainGenerator(side, side, 1, 4, 25).toTerrain();
+            what = "generated " + side + " x " + side;
+        } else {
+            terrain = TerrainLoader.loadTerrain(new File(what), null);
+        }
+        int rows = terrain.heights.length, cols = terrain.heights[0].length;
+        double[] levels = FloodLevels.compute(new ArrayHeightGrid(terrain.heights), terrain.sources).levels();
+        GridKernels.Kernels scalar = GridKernels.scalar();
+        GridKernels.Kernels vector = GridKernels.vector();
+        System.out.printf("%s: %,d cells; vector kernels %s%n%n", what, (long) rows * cols,
+                vector == null ? "not available (see VectorKernels)" : "loaded");
+
+        System.out.printf("%-12s %11s %11s %8s%n", "Kernel", "Scalar ms", "Vector ms", "Speedup");
+        report("extrema", () -> scalar.extrema(terrain.heights),
+                vector == null ? null : () -> vector.extrema(terrain.heights));
+        report("countAbove", () -> scalar.countAbove(levels, height),
+                vector == null ? null : () -> vector.countAbove(levels, height));
+
+        var scalarMask = new FloodMask(rows, cols);
+        var vectorMask = new FloodMask(rows, cols);
+        report("floodMask", () -> {
+            scalar.floodMask(levels, height, scalarMask);
+            return scalarMask.words();
+        }, vector == null ? null : () -> {
+            vector.floodMask(levels, height, vectorMask);
+            return vectorMask.words();
+        });
+    }
+
+    /* Times a kernel both ways and prints a line, or a mismatch if the answers differ. */
+    private static void report(String name, Kernel scalar, Kernel vector) {
+        double scalarMillis = time(scalar);
+        if (vector == null) {
+            System.out.printf("%-12s %11.3f %11s %8s%n", name, scalarMillis, "-", "-");
+            return;
+        }
+        double vectorMillis = time(vector);
+        if (!Objects.deepEquals(scalar.run(), vector.run())) {
+            System.out.printf("%-12s mismatch between the scalar and vector answers%n", name);
+            return;
+        }
+        System.out.printf("%-12s %11.3f %11.3f %7.1fx%n", name, scalarMillis, vectorMillis,
+                scalarMillis / vectorMillis);
+    }
+
+    /* The best time over the timed rounds, in milliseconds. */
+    private static double time(Kernel kernel) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            kernel.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < TIMED_ROUNDS; i++) {
+            long start = System.nanoTime();
+            kernel.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1e6;
+    }
+
+    /* One run of a kernel, returning its answer so it can't be optimized away. */
+    private interface Kernel {
+        Object run();
+    }
+}
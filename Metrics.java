@@ -0,0 +1,209 @@
+package tides;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * This class is a simple in-process registry of named counters and latency
+ * histograms. The loader, the floodfill, the island counters and the
+ * visualizer record into it, the Driver shows it, and dump writes it out for
+ * batch runs.
+ *
+ * Counters and histograms are created the first time their name is asked for
+ * and live for the rest of the run. Recording only touches LongAdders, so it
+ * is safe and cheap from any number of threads.
+ */
+public final class Metrics {
+    private Metrics() {
+    }
+
+    /* Everything recorded so far, sorted by name for dumping. */
+    private static final ConcurrentMap<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+
+    /**
+     * A count of something, such as bytes read or cells visited.
+     */
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        private Counter() {
+        }
+
+        /**
+         * Adds to the counter.
+         *
+         * @param amount to add
+         */
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        /**
+         * Adds one to the counter.
+         */
+        public void increment() {
+            value.increment();
+        }
+
+        /**
+         * Returns the counter's total.
+         *
+         * @return long, the total
+         */
+        public long value() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * A histogram of latencies in nanoseconds. Each latency falls in a power
+     * of two bucket, so percentiles are rounded up to the next power of two
+     * (and never past the largest latency recorded).
+     */
+    public static final class Histogram {
+        // buckets[b] counts latencies in [2^(b - 1), 2^b) nanoseconds
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        private Histogram() {
+            for (int b = 0; b < buckets.length; b++) {
+                buckets[b] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records one latency.
+         *
+         * @param nanos how long it took, in nanoseconds
+         */
+        public void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            buckets[Math.min(63, 64 - Long.numberOfLeadingZeros(nanos))].increment();
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        /**
+         * Records the time since start.
+         *
+         * @param startNanos a System.nanoTime() taken when the work began
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Returns how many latencies have been recorded.
+         *
+         * @return long, the number of latencies
+         */
+        public long count() {
+            return count.sum();
+        }
+
+        /**
+         * Returns the mean latency.
+         *
+         * @return double, the mean in milliseconds, or 0 if nothing was recorded
+         */
+        public double meanMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : total.sum() / 1e6 / n;
+        }
+
+        /**
+         * Returns the largest latency.
+         *
+         * @return double, the maximum in milliseconds
+         */
+        public double maxMillis() {
+            return max.get() / 1e6;
+        }
+
+        /**
+         * Returns an upper bound on the given percentile of the latencies.
+         *
+         * @param percentile between 0 and 100
+         * @return double, the percentile in milliseconds, or 0 if nothing was recorded
+         */
+        public double percentileMillis(double percentile) {
+            long n = count.sum();
+            if (n == 0)
+                return 0;
+
+            long rank = (long) Math.ceil(n * Math.min(100, Math.max(0, percentile)) / 100);
+            long seen = 0;
+            for (int b = 0; b < buckets.length; b++) {
+                seen += buckets[b].sum();
+                if (seen >= Math.max(1, rank)) {
+                    long bound = b == 0 ? 0 : b == 63 ? Long.MAX_VALUE : 1L << b;
+                    return Math.min(bound, max.get()) / 1e6;
+                }
+            }
+            return maxMillis();
+        }
+    }
+
+    /**
+     * Returns the counter with the given name, creating it if needed.
+     *
+     * @param name of the counter, such as "flood.cellsVisited"
+     * @return Counter, the counter
+     */
+    public static Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it if needed.
+     *
+     * @param name of the histogram, such as "flood.mask"
+     * @return Histogram, the histogram
+     */
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    public static void reset() {
+        counters.clear();
+        histograms.clear();
+    }
+
+    /**
+     * Writes every counter and histogram, one per line, sorted by name.
+     *
+     * @param out where to write them
+     */
+    public static void dump(PrintStream out) {
+        out.print(report());
+        out.flush();
+    }
+
+    /**
+     * Returns what dump would write.
+     *
+     * @return String, one line per counter and histogram
+     */
+    public static String report() {
+        var result = new StringBuilder();
+        for (var entry : counters.entrySet()) {
+            result.append(String.format("%-28s %,d%n", entry.getKey(), entry.getValue().value()));
+        }
+        for (var entry : histograms.entrySet()) {
+            Histogram h = entry.getValue();
+            result.append(String.format("%-28s n=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms%n",
+                    entry.getKey(), h.count(), h.meanMillis(), h.percentileMillis(50),
+                    h.percentileMillis(99), h.maxMillis()));
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,155 @@
+package tides;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class remembers RisingTides results by kind and water height, so
+ * asking the same question again, or a question built on the same flood,
+ * doesn't flood the terrain again. It holds up to a budget of bytes and
+ * forgets the least recently used results first.
+ *
+ * One cache can be shared by many RisingTides (see RisingTides.useCache), so
+ * that many terrains open at once share one budget rather than each keeping
+ * its own. Each RisingTides keys its results with its own owner number, so
+ * they never see each other's results, and the cache holds no reference to
+ * the terrains themselves.
+ */
+public final class ResultCache {
+    /* Kinds of result. */
+    static final int MASK = 0, LAND = 1, ISLANDS = 2;
+
+    /* Rough cost of a cached number, counting the entry, key and box. */
+    static final long NUMBER_BYTES = 96;
+
+    /* The default budget. */
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    /* Owner numbers, unique across every cache. */
+    private static final AtomicLong nextOwner = new AtomicLong();
+
+    private static final class Key {
+        final long owner;
+        final int kind;
+        final long height;
+
+        Key(long owner, int kind, double height) {
+            this.owner = owner;
+            this.kind = kind;
+            this.height = Double.doubleToLongBits(height + 0.0); // -0.0 and 0.0 are the same height
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).owner == owner && ((Key) other).kind == kind
+                    && ((Key) other).height == height;
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * Long.hashCode(owner) + kind) * 31 + Long.hashCode(height);
+        }
+    }
+
+    private static final class Entry {
+        final Object value;
+        final long bytes;
+
+        Entry(Object value, long bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+
+    /* In access order, so the first entry is the least recently used. */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long bytes = 0;
+
+    /**
+     * @param maxBytes the most the kept results may take; 0 keeps nothing
+     */
+    public ResultCache(long maxBytes) {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("Cache budget can't be negative: " + maxBytes);
+        this.maxBytes = maxBytes;
+    }
+
+    /* A new owner number to key one RisingTides' results with. */
+    static long newOwner() {
+        return nextOwner.incrementAndGet();
+    }
+
+    /* The cached result, or null if there isn't one. */
+    synchronized Object get(long owner, int kind, double height) {
+        Entry entry = entries.get(new Key(owner, kind, height));
+        Metrics.counter(entry == null ? "cache.miss" : "cache.hit").increment();
+        return entry == null ? null : entry.value;
+    }
+
+    /* Caches a result that takes about the given bytes; one larger than the whole budget isn't kept. */
+    synchronized void put(long owner, int kind, double height, Object value, long size) {
+        Entry old = entries.remove(new Key(owner, kind, height));
+        if (old != null)
+            bytes -= old.bytes;
+        if (size > maxBytes)
+            return;
+
+        entries.put(new Key(owner, kind, height), new Entry(value, size));
+        bytes += size;
+        evict();
+    }
+
+    /**
+     * @param maxBytes the most the kept results may take; 0 keeps nothing
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("Cache budget can't be negative: " + maxBytes);
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * @return long, the most the kept results may take
+     */
+    public synchronized long maxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return long, roughly how much the kept results take
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Forgets every result, whoever it belongs to.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /* Forgets one owner's results. */
+    synchronized void clear(long owner) {
+        for (Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Key, Entry> entry = it.next();
+            if (entry.getKey().owner == owner) {
+                bytes -= entry.getValue().bytes;
+                it.remove();
+            }
+        }
+    }
+
+    /* Forgets least recently used results until the rest fit the budget. */
+    private void evict() {
+        Iterator<Entry> oldest = entries.values().iterator();
+        while (bytes > maxBytes && oldest.hasNext()) {
+            bytes -= oldest.next().bytes;
+            oldest.remove();
+            Metrics.counter("cache.evicted").increment();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package tides;
 
 import java.util.*;
+import java.util.function.*;
 
 /**
  * This class contains methods that provide information about select terrains 
@@ -22,19 +23,42 @@ import java.util.*;
 public class RisingTides {
 
     // Instance variables
-    private double[][] terrain;     // an array for all the heights for each cell
+    private HeightGrid terrain;     // the heights for each cell
     private GridLocation[] sources; // an array for the sources of water on empty terrain 
 
+    // Built the first time they're needed
+    private FloodLevels floodLevels;
+    private IslandMergeTree islandMergeTree;
+    private BasinTree basinTree;
+    private WindowIndex windowIndex;
+    private double[] elevationExtrema;
+
+    // Recent flood masks, land counts and island counts by water height, kept under this owner number
+    private volatile ResultCache results = new ResultCache(ResultCache.DEFAULT_MAX_BYTES);
+    private final long cacheOwner = ResultCache.newOwner();
+
+
     /**
      * DO NOT EDIT!
      * Constructor for RisingTides.
      * @param terrain passes in the selected terrain 
      */
     public RisingTides(Terrain terrain) {
-        this.terrain = terrain.heights;
+        this.terrain = new ArrayHeightGrid(terrain.heights);
         this.sources = terrain.sources;
     }
 
+    /**
+     * Constructor for RisingTides over any grid of heights, such as a 
+     * TiledTerrain that is too large to hold in memory.
+     * @param terrain the heights for each cell
+     * @param sources of water on the terrain
+     */
+    public RisingTides(HeightGrid terrain, GridLocation[] sources) {
+        this.terrain = terrain;
+        this.sources = sources;
+    }
+
     /** 5 points
      * 
      * Find the lowest and highest point of the terrain and output it.
@@ -43,9 +67,28 @@ public class RisingTides {
      * highest points of the terrain, respectively
      */
     public double[] elevationExtrema() {
+        double[] extrema = elevationExtrema; // read once, since clearCache may reset it
+        if (extrema == null)
+            elevationExtrema = extrema = computeElevationExtrema();
+        return extrema.clone();
+    }
 
-        /* WRITE YOUR CODE BELOW */
-        return null; // substitute this line. It is provided so that the code compiles.
+    /* Scans the whole terrain for its lowest and highest points. */
+    private double[] computeElevationExtrema() {
+        if (terrain instanceof ArrayHeightGrid)
+            return GridKernels.extrema(((ArrayHeightGrid) terrain).heights());
+
+        double lowest = Double.POSITIVE_INFINITY;
+        double highest = Double.NEGATIVE_INFINITY;
+
+        for (int row = 0; row < terrain.rows(); row++) {
+            for (int col = 0; col < terrain.cols(); col++) {
+                double height = terrain.height(row, col);
+                lowest = Math.min(lowest, height);
+                highest = Math.max(highest, height);
+            }
+        }
+        return new double[] { lowest, highest };
     }
 
     /** 10 points
@@ -62,9 +105,79 @@ public class RisingTides {
      * @return boolean[][], where flooded cells are true, otherwise false
      */
     public boolean[][] floodedRegionsIn(double height) {
-        
-        /* WRITE YOUR CODE BELOW */
-        return null; // substitute this line. It is provided so that the code compiles.
+        return cachedMask(height).toArray();
+    }
+
+    /**
+     * Same floodfill as floodedRegionsIn, but returns the flooded cells as a 
+     * FloodMask, which takes one bit per cell rather than a byte.
+     * 
+     * @param height of the water
+     * @return FloodMask, where flooded cells are set
+     */
+    public FloodMask floodedMask(double height) {
+        return cachedMask(height).copy();
+    }
+
+    /* The flood mask at a height, from the cache if it's there; callers mustn't change it. */
+    private FloodMask cachedMask(double height) {
+        var flooded = (FloodMask) results.get(cacheOwner, ResultCache.MASK, height);
+        if (flooded == null) {
+            flooded = floodFill(height);
+            results.put(cacheOwner, ResultCache.MASK, height, flooded, 8L * flooded.words().length + ResultCache.NUMBER_BYTES);
+        }
+        return flooded;
+    }
+
+    /* Floods the terrain from its sources, breadth first. */
+    private FloodMask floodFill(double height) {
+        int rows = terrain.rows();
+        int cols = terrain.cols();
+        if ((long) rows * cols > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Grid is too large: " + rows + " x " + cols);
+
+        long start = System.nanoTime();
+        var event = new TideEvents.Flood();
+        event.begin();
+
+        FloodMask flooded = new FloodMask(rows, cols);
+        IntQueue queue = new IntQueue(); // cells as row * cols + col
+        long visited = 0;
+        int frontierPeak = 0;
+
+        for (GridLocation source : sources) {
+            if (terrain.height(source.row, source.col) <= height && !flooded.get(source.row, source.col)) {
+                flooded.set(source.row, source.col);
+                queue.add(source.row * cols + source.col);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            frontierPeak = Math.max(frontierPeak, queue.size());
+            visited++;
+            int cell = queue.remove();
+            int cellRow = cell / cols;
+            int cellCol = cell % cols;
+            for (int d = 0; d < 4; d++) {
+                int row = cellRow + (d == 0 ? -1 : d == 1 ? 1 : 0);
+                int col = cellCol + (d == 2 ? -1 : d == 3 ? 1 : 0);
+                if (row < 0 || row >= rows || col < 0 || col >= cols || flooded.get(row, col))
+                    continue;
+
+                if (terrain.height(row, col) <= height) {
+                    flooded.set(row, col);
+                    queue.add(row * cols + col);
+                }
+            }
+        }
+
+        Metrics.histogram("flood.mask").recordSince(start);
+        Metrics.counter("flood.cellsVisited").add(visited);
+        event.height = height;
+        event.cellsVisited = visited;
+        event.frontierPeak = frontierPeak;
+        event.commit();
+        return flooded;
     }
 
     /** 5 points
@@ -76,9 +189,7 @@ public class RisingTides {
      * @return boolean, true if cell is flooded, otherwise false
      */
     public boolean isFlooded(double height, GridLocation cell) {
-        
-        /* WRITE YOUR CODE BELOW */
-        return false; // substitute this line. It is provided so that the code compiles.
+        return cachedMask(height).get(cell.row, cell.col);
     }
 
     /** 5 points
@@ -95,9 +206,7 @@ public class RisingTides {
      * @return double, representing how high/deep a cell is above/below water
      */
     public double heightAboveWater(double height, GridLocation cell) {
-        
-        /* WRITE YOUR CODE BELOW */
-        return -1; // substitute this line. It is provided so that the code compiles.
+        return terrain.height(cell.row, cell.col) - height;
     }
 
     /** 5 points
@@ -108,9 +217,13 @@ public class RisingTides {
      * @return int, representing every cell above water
      */
     public int totalVisibleLand(double height) {
-        
-        /* WRITE YOUR CODE BELOW */
-        return -1; // substitute this line. It is provided so that the code compiles.
+        var land = (Integer) results.get(cacheOwner, ResultCache.LAND, height);
+        if (land == null) {
+            long cells = (long) terrain.rows() * terrain.cols();
+            land = (int) (cells - cachedMask(height).cardinality());
+            results.put(cacheOwner, ResultCache.LAND, height, land, ResultCache.NUMBER_BYTES);
+        }
+        return land;
     } 
 
 
@@ -127,9 +240,7 @@ public class RisingTides {
      * @return int, representing the amount of land lost or gained
      */
     public int landLost(double height, double newHeight) {
-        
-        /* WRITE YOUR CODE BELOW */
-        return -1; // substitute this line. It is provided so that the code compiles.
+        return totalVisibleLand(height) - totalVisibleLand(newHeight);
     }
 
     /** 10 points
@@ -150,8 +261,289 @@ public class RisingTides {
      * @return int, representing the total number of islands
      */
     public int numOfIslands(double height) {
-        
-        /* WRITE YOUR CODE BELOW */
-        return -1; // substitute this line. It is provided so that the code compiles.
+        var cached = (Integer) results.get(cacheOwner, ResultCache.ISLANDS, height);
+        if (cached != null)
+            return cached;
+
+        /* A union-find over every cell doesn't fit in memory for tiled terrains. */
+        if (!(terrain instanceof ArrayHeightGrid))
+            return numOfIslands(height, Runtime.getRuntime().availableProcessors());
+
+        long start = System.nanoTime();
+        var event = new TideEvents.Islands();
+        event.begin();
+
+        FloodMask flooded = cachedMask(height);
+
+        int rows = terrain.rows();
+        int cols = terrain.cols();
+        WeightedQuickUnionUF uf = new WeightedQuickUnionUF(rows, cols);
+
+        /* Join each land cell to the land cells before it; the rest are joined later. */
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                if (flooded.get(row, col))
+                    continue;
+
+                int cell = row * cols + col;
+                if (col > 0 && !flooded.get(row, col - 1))
+                    uf.union(cell, cell - 1);
+                if (row > 0) {
+                    for (int c = Math.max(0, col - 1); c <= Math.min(cols - 1, col + 1); c++) {
+                        if (!flooded.get(row - 1, c))
+                            uf.union(cell, (row - 1) * cols + c);
+                    }
+                }
+            }
+        }
+
+        /* Every island has exactly one root. */
+        int islands = 0;
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                int cell = row * cols + col;
+                if (!flooded.get(row, col) && uf.find(cell) == cell)
+                    islands++;
+            }
+        }
+
+        Metrics.histogram("islands.count").recordSince(start);
+        Metrics.counter("islands.unions").add(uf.unionCount());
+        Metrics.counter("islands.finds").add(uf.findCount());
+        event.height = height;
+        event.islands = islands;
+        event.unions = uf.unionCount();
+        event.finds = uf.findCount();
+        event.averagePathLength = uf.averagePathLength();
+        event.commit();
+        results.put(cacheOwner, ResultCache.ISLANDS, height, islands, ResultCache.NUMBER_BYTES);
+        return islands;
+    }
+
+    /**
+     * Same count as numOfIslands, but labels the islands in square tiles on 
+     * several threads and then joins the labels that touch across tile seams.
+     * 
+     * @param height of the water
+     * @param threads number of threads to label tiles on
+     * @return int, representing the total number of islands
+     */
+    public int numOfIslands(double height, int threads) {
+        var cached = (Integer) results.get(cacheOwner, ResultCache.ISLANDS, height);
+        if (cached != null)
+            return cached;
+
+        int tileSize = terrain instanceof TiledTerrain
+                ? ((TiledTerrain) terrain).tileSize()
+                : TiledTerrain.DEFAULT_TILE_SIZE;
+
+        long start = System.nanoTime();
+        var event = new TideEvents.Islands();
+        event.begin();
+
+        int islands = TiledIslandCounter.count(cachedMask(height), tileSize, threads);
+
+        Metrics.histogram("islands.countTiled").recordSince(start);
+        event.height = height;
+        event.islands = islands;
+        event.tiled = true;
+        event.commit();
+        results.put(cacheOwner, ResultCache.ISLANDS, height, islands, ResultCache.NUMBER_BYTES);
+        return islands;
+    }
+
+    /**
+     * Labels every island on the flooded terrain, for when the number of 
+     * islands isn't enough. Each island gets a number along with its size, 
+     * bounding box, peak elevation and centroid.
+     * 
+     * @param height of the water
+     * @return IslandLabeling, the island of every cell and statistics per island
+     */
+    public IslandLabeling labelIslands(double height) {
+        return IslandLabeling.label(terrain, cachedMask(height));
+    }
+
+    /**
+     * Same as totalVisibleLand, but counts only the land inside a window. 
+     * Water still reaches the window from the terrain's sources, wherever 
+     * they are.
+     * 
+     * @param height of the water
+     * @param top row of the window
+     * @param left column of the window
+     * @param bottom row of the window (inclusive)
+     * @param right column of the window (inclusive)
+     * @return int, representing every cell in the window above water
+     */
+    public int totalVisibleLand(double height, int top, int left, int bottom, int right) {
+        return windowIndex().landCells(height, top, left, bottom, right);
+    }
+
+    /**
+     * Same as landLost, but only for the land inside a window.
+     * 
+     * @param height of the water
+     * @param newHeight the future height of the water
+     * @param top row of the window
+     * @param left column of the window
+     * @param bottom row of the window (inclusive)
+     * @param right column of the window (inclusive)
+     * @return int, representing the amount of land in the window lost or gained
+     */
+    public int landLost(double height, double newHeight, int top, int left, int bottom, int right) {
+        WindowIndex index = windowIndex();
+        return index.landCells(height, top, left, bottom, right) - index.landCells(newHeight, top, left, bottom, right);
+    }
+
+    /**
+     * Same as numOfIslands, but counts only the islands with land inside a 
+     * window. An island that leaves the window and comes back counts once.
+     * 
+     * @param height of the water
+     * @param top row of the window
+     * @param left column of the window
+     * @param bottom row of the window (inclusive)
+     * @param right column of the window (inclusive)
+     * @return int, representing the number of islands in the window
+     */
+    public int numOfIslands(double height, int top, int left, int bottom, int right) {
+        return islandMergeTree().islandsIn(height, top, left, bottom, right);
+    }
+
+    /**
+     * Same as floodedMask, but only for the cells inside a window.
+     * 
+     * @param height of the water
+     * @param top row of the window
+     * @param left column of the window
+     * @param bottom row of the window (inclusive)
+     * @param right column of the window (inclusive)
+     * @return FloodMask, the size of the window (clipped to the terrain), with 
+     * cell (0, 0) at (top, left)
+     */
+    public FloodMask floodedMask(double height, int top, int left, int bottom, int right) {
+        return windowIndex().floodedMask(height, top, left, bottom, right);
+    }
+
+    /**
+     * Sets how much memory the results of recent queries may take. The flood 
+     * masks, land counts and island counts of recently asked water heights 
+     * are kept, least recently used first out, so asking again is free. 
+     * If the cache is shared (see useCache), this sets the budget of 
+     * everything sharing it.
+     * 
+     * @param bytes the most the kept results may take; 0 keeps nothing
+     */
+    public void setCacheBytes(long bytes) {
+        results.setMaxBytes(bytes);
+    }
+
+    /**
+     * Keeps the results of recent queries in the given cache, which may be 
+     * shared with other RisingTides so that they share one budget, instead 
+     * of the 64 MB cache each one otherwise has to itself. Results kept so 
+     * far are forgotten.
+     * 
+     * @param cache to keep results in
+     */
+    public void useCache(ResultCache cache) {
+        ResultCache old = results;
+        results = Objects.requireNonNull(cache);
+        old.clear(cacheOwner);
+    }
+
+    /**
+     * Forgets the results of recent queries and every index built from the 
+     * heights (flood levels, island merge tree, basin tree, window index 
+     * and elevation extrema), so they are worked out again from the terrain 
+     * as it is now, e.g. after its heights have been edited.
+     */
+    public synchronized void clearCache() {
+        results.clear(cacheOwner);
+        floodLevels = null;
+        islandMergeTree = null;
+        basinTree = null;
+        windowIndex = null;
+        elevationExtrema = null;
+    }
+
+    /**
+     * Finds how likely each cell is to flood when the future water height is 
+     * uncertain, by sampling heights from a distribution in parallel.
+     * 
+     * @param distribution of the water height, e.g. FloodRisk.normal(0.8, 0.3, new Random(1))
+     * @param samples number of water heights to draw
+     * @return FloodRisk, the probability of each cell flooding and the expected land lost
+     */
+    public FloodRisk floodRisk(DoubleSupplier distribution, int samples) {
+        return FloodRisk.compute(floodLevels(), distribution, samples, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Same as floodRisk(DoubleSupplier, int), for water heights already sampled.
+     * 
+     * @param samples of the water height, each equally likely
+     * @return FloodRisk, the probability of each cell flooding and the expected land lost
+     */
+    public FloodRisk floodRisk(double[] samples) {
+        return FloodRisk.compute(floodLevels(), samples, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Finds the lowest water height that floods each cell. Computed once and 
+     * kept, so later queries at any height are a comparison per cell.
+     * 
+     * @return FloodLevels, the flood level of every cell
+     */
+    public synchronized FloodLevels floodLevels() {
+        if (floodLevels == null)
+            floodLevels = FloodLevels.compute(terrain, sources);
+        return floodLevels;
+    }
+
+    /**
+     * Builds (once) the tree of how islands split and go underwater as the 
+     * water rises, which answers island questions at any height in 
+     * logarithmic time.
+     * 
+     * @return IslandMergeTree, the islands at every water height
+     */
+    public synchronized IslandMergeTree islandMergeTree() {
+        if (islandMergeTree == null)
+            islandMergeTree = IslandMergeTree.build(floodLevels());
+        return islandMergeTree;
+    }
+
+    /**
+     * Builds (once) the basins of the terrain and the heights water spills 
+     * between them. Unlike the other indexes this doesn't depend on the 
+     * sources, so it answers floods for new or moved sources directly.
+     * 
+     * @return BasinTree, the basins and spill points of the terrain
+     */
+    public synchronized BasinTree basinTree() {
+        if (basinTree == null)
+            basinTree = BasinTree.build(terrain);
+        return basinTree;
+    }
+
+    /* Adopts indexes built earlier for this terrain, such as ones TerrainIndex loaded. */
+    synchronized void useIndexes(FloodLevels floodLevels, IslandMergeTree islandMergeTree, double[] elevationExtrema) {
+        this.floodLevels = floodLevels;
+        this.islandMergeTree = islandMergeTree;
+        this.elevationExtrema = elevationExtrema.clone();
+    }
+
+    /**
+     * Builds (once) the per-tile summaries of the flood levels that answer 
+     * questions about a window of the terrain without visiting all of it.
+     * 
+     * @return WindowIndex, the window index
+     */
+    public synchronized WindowIndex windowIndex() {
+        if (windowIndex == null)
+            windowIndex = WindowIndex.build(floodLevels());
+        return windowIndex;
     }
 }
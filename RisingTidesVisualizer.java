@@ -2,6 +2,8 @@ package tides;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.geom.*;
+import java.util.Arrays;
 
 /**
  * This class creates a visualizer for .terrain files based on cell heights.
@@ -10,10 +12,16 @@ import java.awt.*;
  */
 public class RisingTidesVisualizer extends JPanel {
     /* Terrain data */
-    private double[][] terrain;
+    private HeightGrid terrain;
 
     /* Which cells are flooded; can change. */
-    private boolean[][] flooded;
+    private FloodMask flooded;
+
+    /* Chance of each cell flooding; when set, drawn as a heat map instead of the flooding. */
+    private FloodRisk risk;
+
+    /* Rows of the terrain loaded so far; rows below these aren't drawn yet. */
+    private int loadedRows;
 
     /* Min and max height; used to interpolate heights to colors. */
     private double minHeight, maxHeight;
@@ -21,6 +29,10 @@ public class RisingTidesVisualizer extends JPanel {
     /* Color of flooded cells. */
     private static final Color UNDERWATER_COLOR = new Color(0, 49, 83); // Prussian blue
 
+    /* Heat map colors for cells that rarely and always flood; in between is interpolated. */
+    private static final Color LOW_RISK_COLOR = new Color(255, 237, 160); // Pale yellow
+    private static final Color HIGH_RISK_COLOR = new Color(189, 0, 38); // Crimson
+
     /*
      * The rest of the map is colored according to the following scheme. The 
      * heights are mapped to real numbers between 0 and 1. Those real numbers 
@@ -66,28 +78,151 @@ public class RisingTidesVisualizer extends JPanel {
     }
 
     public void setTerrain(double[][] terrain) {
-        /* Stash the terrain. */
-        this.terrain = terrain;
-
-        /* Clear flooding, since the terrain has changed. */
-        this.flooded = null;
+        setTerrain(new ArrayHeightGrid(terrain));
+    }
 
+    /*
+     * Shows a terrain, clearing any flooding or risk map. The heights are 
+     * scanned on the calling thread and the change is queued on the event 
+     * thread behind any startTerrain or showRows before it, so it is safe to 
+     * call from any thread.
+     */
+    public void setTerrain(HeightGrid terrain) {
         /* Recompute min and max heights. */
-        minHeight = Double.POSITIVE_INFINITY;
-        maxHeight = Double.NEGATIVE_INFINITY;
-
-        for (int row = 0; row < terrain.length; row++) {
-            for (int col = 0; col < terrain[0].length; col++) {
-                if (terrain[row][col] < minHeight)
-                    minHeight = terrain[row][col];
-                if (terrain[row][col] > maxHeight)
-                    maxHeight = terrain[row][col];
+        double[] extrema;
+        if (terrain instanceof ArrayHeightGrid) {
+            extrema = GridKernels.extrema(((ArrayHeightGrid) terrain).heights());
+        } else {
+            extrema = new double[] { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+            for (int row = 0; row < terrain.rows(); row++) {
+                for (int col = 0; col < terrain.cols(); col++) {
+                    double height = terrain.height(row, col);
+                    if (height < extrema[0])
+                        extrema[0] = height;
+                    if (height > extrema[1])
+                        extrema[1] = height;
+                }
             }
         }
+
+        SwingUtilities.invokeLater(() -> {
+            /* Stash the terrain. */
+            this.terrain = terrain;
+            this.loadedRows = terrain.rows();
+
+            /* Clear flooding, since the terrain has changed. */
+            this.flooded = null;
+            this.risk = null;
+
+            minHeight = extrema[0];
+            maxHeight = extrema[1];
+        });
+    }
+
+    /*
+     * Starts showing a terrain that is still loading. Rows are drawn as 
+     * showRows reports them, colored by the heights seen so far. Safe to call 
+     * from any thread.
+     */
+    public void startTerrain(double[][] heights) {
+        SwingUtilities.invokeLater(() -> {
+            terrain = new ArrayHeightGrid(heights);
+            flooded = null;
+            risk = null;
+            loadedRows = 0;
+            minHeight = Double.POSITIVE_INFINITY;
+            maxHeight = Double.NEGATIVE_INFINITY;
+            repaint();
+        });
+    }
+
+    /*
+     * Draws rows fromRow up to toRow of the terrain passed to startTerrain, 
+     * which have now loaded. Only those rows are repainted unless they widen 
+     * the range of heights, which recolors everything. Safe to call from any 
+     * thread.
+     */
+    public void showRows(double[][] heights, int fromRow, int toRow) {
+        SwingUtilities.invokeLater(() -> {
+            if (!(terrain instanceof ArrayHeightGrid) || ((ArrayHeightGrid) terrain).heights() != heights)
+                return;
+
+            double[] extrema = GridKernels.extrema(Arrays.copyOfRange(heights, fromRow, toRow));
+            boolean rescaled = extrema[0] < minHeight || extrema[1] > maxHeight;
+            minHeight = Math.min(minHeight, extrema[0]);
+            maxHeight = Math.max(maxHeight, extrema[1]);
+            loadedRows = Math.max(loadedRows, toRow);
+
+            if (rescaled) {
+                repaint();
+                return;
+            }
+            Rectangle2D.Double area = drawingArea();
+            double cellHeight = area.height / terrain.rows();
+            int y = (int) (area.y + Math.floor(fromRow * cellHeight));
+            repaint((int) area.x, y, (int) Math.ceil(area.width) + 1,
+                    (int) Math.ceil((toRow - fromRow) * cellHeight) + 2);
+        });
     }
 
     public void setFlooding(boolean[][] flooded) {
-        this.flooded = flooded;
+        setFlooding(FloodMask.of(flooded));
+    }
+
+    /*
+     * Shows a flood mask. Queued on the event thread like setTerrain, so it 
+     * lands after the terrain it belongs to; safe to call from any thread.
+     */
+    public void setFlooding(FloodMask flooded) {
+        SwingUtilities.invokeLater(() -> this.flooded = flooded);
+    }
+
+    /*
+     * Draws the chance of each cell flooding as a heat map, from pale yellow 
+     * to crimson, over the terrain colors of cells that never flood. Pass 
+     * null to go back to drawing the flooding. Safe to call from any thread.
+     */
+    public void setRiskMap(FloodRisk risk) {
+        SwingUtilities.invokeLater(() -> this.risk = risk);
+    }
+
+    /*
+     * Applies a change in flooding to the current flood mask and repaints only 
+     * the area the changed cells cover. Safe to call from any thread.
+     */
+    public void applyFloodDelta(FloodDelta delta) {
+        if (delta.isEmpty())
+            return;
+
+        SwingUtilities.invokeLater(() -> {
+            if (terrain == null || flooded == null)
+                return;
+
+            int cols = delta.cols();
+            int minRow = Integer.MAX_VALUE, minCol = Integer.MAX_VALUE, maxRow = -1, maxCol = -1;
+            for (int cell : delta.floodedCells()) {
+                flooded.set(cell / cols, cell % cols);
+            }
+            for (int cell : delta.driedCells()) {
+                flooded.clear(cell / cols, cell % cols);
+            }
+            for (int[] cells : new int[][] { delta.floodedCells(), delta.driedCells() }) {
+                for (int cell : cells) {
+                    minRow = Math.min(minRow, cell / cols);
+                    maxRow = Math.max(maxRow, cell / cols);
+                    minCol = Math.min(minCol, cell % cols);
+                    maxCol = Math.max(maxCol, cell % cols);
+                }
+            }
+
+            Rectangle2D.Double area = drawingArea();
+            double cellWidth = area.width / terrain.cols();
+            double cellHeight = area.height / terrain.rows();
+            int x = (int) (area.x + Math.floor(minCol * cellWidth));
+            int y = (int) (area.y + Math.floor(minRow * cellHeight));
+            repaint(x, y, (int) Math.ceil((maxCol - minCol + 1) * cellWidth) + 2,
+                    (int) Math.ceil((maxRow - minRow + 1) * cellHeight) + 2);
+        });
     }
 
     private static int interpolate(int value, int min, int max, int newMin, int newMax) {
@@ -99,14 +234,23 @@ public class RisingTidesVisualizer extends JPanel {
     }
 
     private Color colorFor(int row, int col) {
-        /* Water always draws blue. */
-        if (flooded[row][col])
+        /* Cells that might flood draw by how likely they are to; otherwise water draws blue. */
+        if (risk != null) {
+            double p = risk.probability(row, col);
+            if (p > 0) {
+                return new Color(
+                        (int) interpolate(p, 0, 1, LOW_RISK_COLOR.getRed(), HIGH_RISK_COLOR.getRed()),
+                        (int) interpolate(p, 0, 1, LOW_RISK_COLOR.getGreen(), HIGH_RISK_COLOR.getGreen()),
+                        (int) interpolate(p, 0, 1, LOW_RISK_COLOR.getBlue(), HIGH_RISK_COLOR.getBlue()));
+            }
+        } else if (flooded != null && flooded.get(row, col)) {
             return UNDERWATER_COLOR;
+        }
 
         /* Everything else gets a nice shade based on height. */
 
         /* Map everything to a value in the interaval [0, 1) */
-        double alpha = interpolate(terrain[row][col], minHeight, maxHeight, 0, 1);
+        double alpha = interpolate(terrain.height(row, col), minHeight, maxHeight, 0, 1);
 
         /* Figure out which points we're between. */
         for (int i = 1; i < COLORS.length; i++) {
@@ -132,19 +276,62 @@ public class RisingTidesVisualizer extends JPanel {
 
     @Override
     public void paint(Graphics g) {
+        long start = System.nanoTime();
+        var event = new TideEvents.Paint();
+        event.begin();
+
         /* Draw the background. */
         g.setColor(BACKGROUND_COLOR);
         g.fillRect(0, 0, getWidth(), getHeight());
 
         /* Now draw the terrain - if there is anything to draw, that is. */
-        if (terrain == null || flooded == null)
+        if (terrain == null || loadedRows == 0)
             return;
 
+        Rectangle2D.Double area = drawingArea();
+        double width = area.width;
+        double height = area.height;
+        int baseX = (int) area.x;
+        int baseY = (int) area.y;
+
+        /* Only draw the pixels that need repainting. */
+        int fromX = baseX, toX = (int) Math.ceil(baseX + width);
+        int fromY = baseY, toY = (int) Math.ceil(baseY + height);
+        Rectangle clip = g.getClipBounds();
+        if (clip != null) {
+            fromX = Math.max(fromX, clip.x);
+            toX = Math.min(toX, clip.x + clip.width);
+            fromY = Math.max(fromY, clip.y);
+            toY = Math.min(toY, clip.y + clip.height);
+        }
+
+        for (int x = fromX; x < toX && x < baseX + width; x++) {
+            for (int y = fromY; y < toY && y < baseY + height; y++) {
+                int col = interpolate(x, baseX, (int) (baseX + width), 0, terrain.cols());
+                int row = interpolate(y, baseY, (int) (baseY + height), 0, terrain.rows());
+                if (row >= loadedRows)
+                    break;
+
+                g.setColor(colorFor(row, col));
+                g.fillRect(x, y, 1, 1);
+            }
+        }
+
+        long pixels = (long) Math.max(0, Math.min(toX, baseX + width) - fromX)
+                * (long) Math.max(0, Math.min(toY, baseY + height) - fromY);
+        Metrics.histogram("paint").recordSince(start);
+        Metrics.counter("paint.pixels").add(pixels);
+        event.pixels = pixels;
+        event.commit();
+    }
+
+    /* The part of the panel the terrain is drawn in, keeping the terrain's aspect ratio. */
+    private Rectangle2D.Double drawingArea() {
         /* Compute our aspect ratio. */
         double width = getWidth();
         double height = getHeight();
 
-        double aspectRatio = (double) terrain[0].length / terrain.length;
+        double aspectRatio = (double) terrain.cols() / terrain.rows();
 
         /* Aspect ratio is too wide. Bring the width down. */
         if (width / height > aspectRatio) {
@@ -157,24 +344,15 @@ public class RisingTidesVisualizer extends JPanel {
 
         int baseX = (int) ((getWidth() - width) / 2.0);
         int baseY = (int) ((getHeight() - height) / 2.0);
-
-        for (int x = baseX; x < baseX + width; x++) {
-            for (int y = baseY; y < baseY + height; y++) {
-                int col = interpolate(x, baseX, (int) (baseX + width), 0, terrain[0].length);
-                int row = interpolate(y, baseY, (int) (baseY + height), 0, terrain.length);
-
-                g.setColor(colorFor(row, col));
-                g.fillRect(x, y, 1, 1);
-            }
-        }
+        return new Rectangle2D.Double(baseX, baseY, width, height);
     }
 
     public double getHeightAspect() {
-        return (double) getHeight()/terrain.length;
+        return (double) getHeight()/terrain.rows();
     }
 
     public double getWidthAspect() {
-        return (double) getWidth()/terrain[0].length;
+        return (double) getWidth()/terrain.cols();
     }
 
     public double getDisplayAspectRatio() {
@@ -182,6 +360,6 @@ public class RisingTidesVisualizer extends JPanel {
     }
 
     public double getTerrainAspectRatio() {
-        return (double) terrain.length/terrain[0].length;
+        return (double) terrain.rows()/terrain.cols();
     }
 }
\ No newline at end of file
@@ -0,0 +1,385 @@
+package tides;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * This class is a flood mask stored as runs along each row, for archiving
+ * and sending results. Flooding comes in large uniform regions, so a row
+ * usually needs a handful of runs rather than a bit per cell.
+ *
+ * Each row is kept as the sorted columns where it toggles between land and
+ * water, starting from land: cells from the first toggle up to the second
+ * are water, from the third up to the fourth are water, and so on. Two masks
+ * are compared by merging their toggles row by row, so diffing costs the
+ * number of runs, not the number of cells.
+ *
+ * The binary form written by write and read by read is the magic "RLEM", a
+ * version, the rows and cols, and then for each row the number of toggles
+ * and the gaps between them, all as unsigned varints.
+ */
+public final class RunLengthMask {
+    private static final int MAGIC = 0x524C454D; // "RLEM"
+    private static final int VERSION = 1;
+
+    private final int rows;
+    private final int cols;
+
+    // The toggles of row r are toggles[rowStart[r]] up to toggles[rowStart[r + 1]]
+    private final int[] rowStart;
+    private final int[] toggles;
+
+    private RunLengthMask(int rows, int cols, int[] rowStart, int[] toggles) {
+        this.rows = rows;
+        this.cols = cols;
+        this.rowStart = rowStart;
+        this.toggles = toggles;
+    }
+
+    /* Collects toggles one row at a time. */
+    private static final class Builder {
+        private final int rows, cols;
+        private final int[] rowStart;
+        private int[] toggles = new int[64];
+        private int size = 0;
+        private int row = 0;
+
+        Builder(int rows, int cols) {
+            this.rows = rows;
+            this.cols = cols;
+            rowStart = new int[rows + 1];
+        }
+
+        void toggle(int col) {
+            if (size == toggles.length)
+                toggles = Arrays.copyOf(toggles, size * 2);
+            toggles[size++] = col;
+        }
+
+        void endRow() {
+            rowStart[++row] = size;
+        }
+
+        RunLengthMask build() {
+            return new RunLengthMask(rows, cols, rowStart, Arrays.copyOf(toggles, size));
+        }
+    }
+
+    /**
+     * Encodes a FloodMask, skipping over whole words of land or water at a
+     * time.
+     *
+     * @param mask to encode
+     * @return RunLengthMask, the same cells as runs
+     */
+    public static RunLengthMask of(FloodMask mask) {
+        int rows = mask.rows();
+        int cols = mask.cols();
+        long[] words = mask.words();
+        var builder = new Builder(rows, cols);
+
+        for (int row = 0; row < rows; row++) {
+            long start = (long) row * cols;
+            long end = start + cols;
+            boolean water = false;
+            for (long p = start; p < end;) {
+                /* Look for the next bit that differs from the current run. */
+                long word = words[(int) (p >>> 6)];
+                long differs = (water ? ~word : word) >>> (p & 63);
+                p += differs == 0 ? 64 - (p & 63) : Long.numberOfTrailingZeros(differs);
+                if (differs != 0 && p < end) {
+                    builder.toggle((int) (p - start));
+                    water = !water;
+                }
+            }
+            builder.endRow();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Encodes the cells flooded at a water height straight from their flood
+     * levels, without building a mask first.
+     *
+     * @param levels of every cell in row-major order, as in FloodLevels.levels()
+     * @param rows of the grid
+     * @param cols of the grid
+     * @param height of the water
+     * @return RunLengthMask, where cells with a level at or below height are water
+     */
+    public static RunLengthMask fromLevels(double[] levels, int rows, int cols, double height) {
+        var builder = new Builder(rows, cols);
+        for (int row = 0, i = 0; row < rows; row++) {
+            boolean water = false;
+            for (int col = 0; col < cols; col++, i++) {
+                if ((levels[i] <= height) != water) {
+                    builder.toggle(col);
+                    water = !water;
+                }
+            }
+            builder.endRow();
+        }
+        return builder.build();
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int cols() {
+        return cols;
+    }
+
+    /**
+     * @return int, the total number of runs of water in the mask
+     */
+    public int waterRuns() {
+        int result = 0;
+        for (int row = 0; row < rows; row++) {
+            result += (rowStart[row + 1] - rowStart[row] + 1) / 2;
+        }
+        return result;
+    }
+
+    /**
+     * @param row of the cell
+     * @param col of the cell
+     * @return boolean, true if the cell is water
+     */
+    public boolean get(int row, int col) {
+        if (row < 0 || row >= rows || col < 0 || col >= cols)
+            throw new IndexOutOfBoundsException("Cell (" + row + ", " + col + ") is off the mask.");
+
+        /* The cell is water if an odd number of toggles come at or before it. */
+        int from = rowStart[row], to = rowStart[row + 1];
+        int at = Arrays.binarySearch(toggles, from, to, col);
+        int before = at >= 0 ? at + 1 - from : -at - 1 - from;
+        return (before & 1) == 1;
+    }
+
+    /**
+     * @return long, the number of water cells
+     */
+    public long cardinality() {
+        long result = 0;
+        for (int row = 0; row < rows; row++) {
+            result += waterInRow(toggles, rowStart[row], rowStart[row + 1], cols);
+        }
+        return result;
+    }
+
+    /**
+     * @return FloodMask, the same cells one bit per cell
+     */
+    public FloodMask toFloodMask() {
+        var mask = new FloodMask(rows, cols);
+        for (int row = 0; row < rows; row++) {
+            int to = rowStart[row + 1];
+            for (int t = rowStart[row]; t < to; t += 2) {
+                int end = t + 1 < to ? toggles[t + 1] : cols;
+                for (int col = toggles[t]; col < end; col++) {
+                    mask.set(row, col);
+                }
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Finds the cells that differ between two masks of the same size.
+     *
+     * @param other mask to compare against
+     * @return RunLengthMask, where the cells that are water in exactly one of the masks are set
+     */
+    public RunLengthMask diff(RunLengthMask other) {
+        checkSameSize(other);
+
+        var builder = new Builder(rows, cols);
+        for (int row = 0; row < rows; row++) {
+            /* Toggles of the exclusive-or are the toggles of either, less those they share. */
+            int a = rowStart[row], aEnd = rowStart[row + 1];
+            int b = other.rowStart[row], bEnd = other.rowStart[row + 1];
+            while (a < aEnd || b < bEnd) {
+                int nextA = a < aEnd ? toggles[a] : Integer.MAX_VALUE;
+                int nextB = b < bEnd ? other.toggles[b] : Integer.MAX_VALUE;
+                if (nextA == nextB) {
+                    a++;
+                    b++;
+                } else if (nextA < nextB) {
+                    builder.toggle(nextA);
+                    a++;
+                } else {
+                    builder.toggle(nextB);
+                    b++;
+                }
+            }
+            builder.endRow();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Counts the cells that differ between two masks of the same size,
+     * without building their diff.
+     *
+     * @param other mask to compare against
+     * @return long, the number of cells that are water in exactly one of the masks
+     */
+    public long countDifferences(RunLengthMask other) {
+        checkSameSize(other);
+
+        long result = 0;
+        for (int row = 0; row < rows; row++) {
+            int a = rowStart[row], aEnd = rowStart[row + 1];
+            int b = other.rowStart[row], bEnd = other.rowStart[row + 1];
+            boolean differs = false;
+            int since = 0;
+            while (a < aEnd || b < bEnd) {
+                int nextA = a < aEnd ? toggles[a] : Integer.MAX_VALUE;
+                int nextB = b < bEnd ? other.toggles[b] : Integer.MAX_VALUE;
+                int col = Math.min(nextA, nextB);
+                if (nextA == col)
+                    a++;
+                if (nextB == col)
+                    b++;
+                if (nextA == nextB)
+                    continue;
+
+                if (differs)
+                    result += col - since;
+                differs = !differs;
+                since = col;
+            }
+            if (differs)
+                result += cols - since;
+        }
+        return result;
+    }
+
+    /**
+     * Writes the mask in its binary form.
+     *
+     * @param out where to write it
+     * @throws IOException if writing fails
+     */
+    public void write(OutputStream out) throws IOException {
+        var data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(rows);
+        data.writeInt(cols);
+        for (int row = 0; row < rows; row++) {
+            int from = rowStart[row], to = rowStart[row + 1];
+            writeVarint(data, to - from);
+            int last = 0;
+            for (int t = from; t < to; t++) {
+                writeVarint(data, toggles[t] - last);
+                last = toggles[t];
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * @return byte[], the mask in its binary form
+     */
+    public byte[] toBytes() {
+        var out = new ByteArrayOutputStream();
+        try {
+            write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads a mask written by write. It reads no further than the mask's own
+     * bytes, so masks written one after another to a stream can be read back
+     * one after another; the stream isn't buffered here, so pass a buffered
+     * one when reading many.
+     *
+     * @param in to read from
+     * @return RunLengthMask, the mask read
+     * @throws IOException if reading fails or the data isn't a mask
+     */
+    public static RunLengthMask read(InputStream in) throws IOException {
+        var data = new DataInputStream(in);
+        if (data.readInt() != MAGIC)
+            throw new IOException("Not a run-length mask.");
+        int version = data.readInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported run-length mask version " + version + ".");
+
+        int rows = data.readInt();
+        int cols = data.readInt();
+        if (rows < 0 || cols < 0)
+            throw new IOException("Malformed run-length mask.");
+
+        var builder = new Builder(rows, cols);
+        for (int row = 0; row < rows; row++) {
+            int count = readVarint(data);
+            if (count < 0 || count > cols)
+                throw new IOException("Malformed run-length mask.");
+            long col = 0;
+            for (int t = 0; t < count; t++) {
+                /* Toggles start at 0 or later and each one is past the one before. */
+                int gap = readVarint(data);
+                col += gap;
+                if (gap < 0 || (t > 0 && gap == 0) || col >= cols)
+                    throw new IOException("Malformed run-length mask.");
+                builder.toggle((int) col);
+            }
+            builder.endRow();
+        }
+        return builder.build();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof RunLengthMask))
+            return false;
+        var mask = (RunLengthMask) other;
+        return rows == mask.rows && cols == mask.cols
+                && Arrays.equals(rowStart, mask.rowStart) && Arrays.equals(toggles, mask.toggles);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * rows + cols) + Arrays.hashCode(toggles);
+    }
+
+    /* Water cells in one row given its toggles. */
+    private static long waterInRow(int[] toggles, int from, int to, int cols) {
+        long result = 0;
+        for (int t = from; t < to; t += 2) {
+            result += (t + 1 < to ? toggles[t + 1] : cols) - toggles[t];
+        }
+        return result;
+    }
+
+    private void checkSameSize(RunLengthMask other) {
+        if (rows != other.rows || cols != other.cols)
+            throw new IllegalArgumentException("Masks are different sizes: " + rows + " x " + cols
+                    + " and " + other.rows + " x " + other.cols);
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+        }
+        throw new IOException("Malformed run-length mask.");
+    }
+}
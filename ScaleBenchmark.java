@@ -0,0 +1,114 @@
+package tides;
+
+import java.io.*;
+import java.lang.management.*;
+
+/**
+ * This class measures how loading, flooding and island counting scale with
+ * the size of the terrain, on generated terrains from a million cells up to
+ * hundreds of millions.
+ *
+ * Each size is generated as a tiled terrain and, up to a limit, as .terrain
+ * text too. The text is timed loading into memory; the tiled terrain is
+ * timed opening, and is what gets flooded and counted, since only it scales
+ * past the heap. Peak heap is the sum of the heap pools' peak usage, reset
+ * before each size.
+ */
+public final class ScaleBenchmark {
+    /* The smallest terrain, in cells; each size after has four times as many. */
+    private static final long FIRST_CELLS = 1L << 20;
+
+    private ScaleBenchmark() {
+    }
+
+    /**
+     * Usage: ScaleBenchmark [max cells] [text limit in cells] [directory] [water height]
+     *
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) throws IOException {
+        long maxCells = args.length > 0 ? Long.parseLong(args[0]) : 1L << 26;
+        long textLimit = args.length > 1 ? Long.parseLong(args[1]) : 1L << 24;
+        File directory = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"));
+        double height = args.length > 3 ? Double.parseDouble(args[3]) : 0.0;
+
+        System.out.printf("%11s %9s %9s %9s %9s %9s %9s %11s %8s%n", "Cells", "Gen ms", "Text ms",
+                "Open ms", "Flood ms", "Isl. ms", "Islands", "Land", "Heap MB");
+        for (long cells = FIRST_CELLS; cells <= maxCells; cells = Math.min(maxCells, cells * 4)) {
+            int side = (int) Math.sqrt((double) cells);
+            run(side, side, cells <= textLimit, directory, height);
+            if (cells == maxCells)
+                break;
+        }
+        Metrics.dump(System.out);
+    }
+
+    /* Generates, loads, floods and counts one size, printing a line of timings. */
+    private static void run(int rows, int cols, boolean text, File directory, double height) throws IOException {
+        File tilesFile = new File(directory, "scale-" + rows + "x" + cols + ".tiles");
+        File textFile = new File(directory, "scale-" + rows + "x" + cols + ".terrain");
+        try {
+            System.gc();
+            resetPeakHeap();
+
+            long start = System.nanoTime();
+            var generator = new TerrainGenerator(rows, cols, 1, 4, 25);
+            generator.writeTiles(tilesFile);
+            if (text)
+                generator.writeText(textFile);
+            long generateMillis = millisSince(start);
+
+            String textLoad = "-";
+            if (text) {
+                start = System.nanoTime();
+                TerrainLoader.loadTerrain(textFile, null);
+                textLoad = Long.toString(millisSince(start));
+            }
+
+            start = System.nanoTime();
+            try (var terrain = TiledTerrain.open(tilesFile, TiledTerrain.DEFAULT_CACHE_TILES)) {
+                long openMillis = millisSince(start);
+                var rt = new RisingTides(terrain, terrain.sources());
+
+                start = System.nanoTime();
+                FloodMask flooded = rt.floodedMask(height);
+                long floodMillis = millisSince(start);
+
+                start = System.nanoTime();
+                int islands = rt.numOfIslands(height);
+                long islandMillis = millisSince(start);
+
+                System.out.printf("%,11d %9d %9s %9d %9d %9d %9d %,11d %8d%n", (long) rows * cols, generateMillis,
+                        textLoad, openMillis, floodMillis, islandMillis, islands,
+                        (long) rows * cols - flooded.cardinality(), peakHeap() >> 20);
+            }
+        } catch (OutOfMemoryError e) {
+            System.out.printf("%,11d out of memory (max heap %d MB)%n", (long) rows * cols,
+                    Runtime.getRuntime().maxMemory() >> 20);
+        } finally {
+            tilesFile.delete();
+            textFile.delete();
+        }
+    }
+
+    private static long millisSince(long start) {
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+    }
+
+    /* The sum of the heap pools' peaks; at least the real peak, since pools peak at different times. */
+    private static long peakHeap() {
+        long bytes = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                bytes += pool.getPeakUsage().getUsed();
+        }
+        return bytes;
+    }
+}
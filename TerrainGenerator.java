@@ -0,0 +1,302 @@
+package tides;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class makes synthetic terrains of any size, for testing how the
+ * engines scale without downloading the huge terrains.
+ *
+ * Heights are fractal value noise: octaves of smoothly interpolated random
+ * values on coarser and finer lattices, each half the wavelength and half
+ * the amplitude of the last, which looks like coastline and hills. Every
+ * height depends only on the seed and its cell, so terrains are generated a
+ * row at a time and never have to fit in memory. Heights are rounded to
+ * centimeters, so a terrain written as text loads back exactly.
+ *
+ * Water sources are the lowest cells of equal stretches of the border, like
+ * the ocean around a real terrain.
+ */
+public final class TerrainGenerator {
+    /* Rough height of the highest hills and depth of the deepest sea, in meters. */
+    public static final double RELIEF = 100.0;
+
+    /* Wavelength of the finest octave, in cells. */
+    private static final double FINEST_WAVELENGTH = 2.0;
+
+    private final int rows;
+    private final int cols;
+    private final long seed;
+    private final GridLocation[] sources;
+
+    /* Per octave, the lattice spacing in cells and the amplitude in meters. */
+    private final double[] wavelength;
+    private final double[] amplitude;
+
+    /**
+     * @param rows of the terrain
+     * @param cols of the terrain
+     * @param seed for the noise; the same seed always gives the same terrain
+     * @param sources number of water sources to place along the border
+     * @param islandDensity roughly how many hills (islands, at low water) per million cells
+     */
+    public TerrainGenerator(int rows, int cols, long seed, int sources, double islandDensity) {
+        if (rows <= 0 || cols <= 0)
+            throw new IllegalArgumentException("Invalid terrain size " + rows + " x " + cols + ".");
+        if (sources < 0)
+            throw new IllegalArgumentException("Invalid number of sources: " + sources);
+        if (!(islandDensity > 0))
+            throw new IllegalArgumentException("Island density must be positive: " + islandDensity);
+
+        this.rows = rows;
+        this.cols = cols;
+        this.seed = seed;
+
+        /* One hill per wavelength squared, so the coarsest wavelength sets the density. */
+        double coarsest = Math.max(FINEST_WAVELENGTH, 1000.0 / Math.sqrt(islandDensity));
+        int octaves = 1 + (int) (Math.log(coarsest / FINEST_WAVELENGTH) / Math.log(2));
+        wavelength = new double[octaves];
+        amplitude = new double[octaves];
+        double total = 0;
+        for (int octave = 0; octave < octaves; octave++) {
+            wavelength[octave] = coarsest / (1 << octave);
+            amplitude[octave] = 1.0 / (1 << octave);
+            total += amplitude[octave];
+        }
+        for (int octave = 0; octave < octaves; octave++) {
+            amplitude[octave] *= RELIEF / total;
+        }
+
+        this.sources = placeSources(sources);
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int cols() {
+        return cols;
+    }
+
+    /**
+     * @return GridLocation[], the water sources (a copy)
+     */
+    public GridLocation[] sources() {
+        return sources.clone();
+    }
+
+    /**
+     * @param row of the cell
+     * @param col of the cell
+     * @return double, the cell's height in meters
+     */
+    public double height(int row, int col) {
+        double sum = 0;
+        for (int octave = 0; octave < wavelength.length; octave++) {
+            double y = row / wavelength[octave];
+            double x = col / wavelength[octave];
+            long y0 = (long) Math.floor(y);
+            long x0 = (long) Math.floor(x);
+            sum += amplitude[octave] * blend(lattice(octave, x0, y0), lattice(octave, x0 + 1, y0),
+                    lattice(octave, x0, y0 + 1), lattice(octave, x0 + 1, y0 + 1), x - x0, y - y0);
+        }
+        return Math.round(sum * 100) / 100.0;
+    }
+
+    /**
+     * Fills in one row of heights; the same as height() for each column, but
+     * looks up each lattice value once per row rather than once per cell.
+     *
+     * @param row to generate
+     * @param heights to fill, one per column
+     */
+    public void row(int row, double[] heights) {
+        var sum = new double[cols];
+        for (int octave = 0; octave < wavelength.length; octave++) {
+            double y = row / wavelength[octave];
+            long y0 = (long) Math.floor(y);
+            double fy = y - y0;
+
+            long x0 = Long.MIN_VALUE;
+            double top0 = 0, top1 = 0, bottom0 = 0, bottom1 = 0;
+            for (int col = 0; col < cols; col++) {
+                double x = col / wavelength[octave];
+                long cell = (long) Math.floor(x);
+                if (cell != x0) {
+                    x0 = cell;
+                    top0 = lattice(octave, x0, y0);
+                    top1 = lattice(octave, x0 + 1, y0);
+                    bottom0 = lattice(octave, x0, y0 + 1);
+                    bottom1 = lattice(octave, x0 + 1, y0 + 1);
+                }
+                sum[col] += amplitude[octave] * blend(top0, top1, bottom0, bottom1, x - x0, fy);
+            }
+        }
+        for (int col = 0; col < cols; col++) {
+            heights[col] = Math.round(sum[col] * 100) / 100.0;
+        }
+    }
+
+    /**
+     * Generates the whole terrain in memory.
+     *
+     * @return Terrain, the heights and sources
+     */
+    public Terrain toTerrain() {
+        var heights = new double[rows][cols];
+        for (int row = 0; row < rows; row++) {
+            row(row, heights[row]);
+        }
+        return new Terrain(heights, sources());
+    }
+
+    /**
+     * Writes the terrain as a local .terrain text file, a row at a time.
+     *
+     * @param file to write; it is replaced if it exists
+     * @throws IOException if the file can't be written
+     */
+    public void writeText(File file) throws IOException {
+        try (var out = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII), 1 << 16)) {
+            out.write("local\n" + rows + " " + cols + "\n" + sources.length + "\n");
+            for (GridLocation source : sources) {
+                out.write(source.row + " " + source.col + "\n");
+            }
+
+            var heights = new double[cols];
+            var line = new StringBuilder();
+            for (int row = 0; row < rows; row++) {
+                row(row, heights);
+                line.setLength(0);
+                for (int col = 0; col < cols; col++) {
+                    if (col > 0)
+                        line.append(' ');
+                    appendCents(line, Math.round(heights[col] * 100));
+                }
+                line.append('\n');
+                out.append(line);
+            }
+        }
+    }
+
+    /**
+     * Writes the terrain as a tiled terrain file, which opens without parsing
+     * and pages its heights in from disk (see TiledTerrain).
+     *
+     * @param file to write; it is replaced if it exists
+     * @throws IOException if the file can't be written
+     */
+    public void writeTiles(File file) throws IOException {
+        try (var writer = new TiledTerrain.Writer(file, rows, cols, sources, TiledTerrain.DEFAULT_TILE_SIZE)) {
+            var heights = new double[cols];
+            for (int row = 0; row < rows; row++) {
+                row(row, heights);
+                writer.writeRow(heights);
+            }
+        }
+    }
+
+    /* The lowest cell in each of count equal stretches of the border, walked clockwise from (0, 0). */
+    private GridLocation[] placeSources(int count) {
+        long perimeter = rows == 1 || cols == 1 ? (long) rows * cols : 2L * (rows + cols) - 4;
+        var result = new GridLocation[count];
+        for (int i = 0; i < count; i++) {
+            long from = perimeter * i / count;
+            long to = Math.max(from + 1, perimeter * (i + 1) / count);
+            GridLocation lowest = null;
+            double lowestHeight = Double.POSITIVE_INFINITY;
+            for (long step = from; step < to; step++) {
+                GridLocation cell = borderCell(step % perimeter);
+                double height = height(cell.row, cell.col);
+                if (height < lowestHeight) {
+                    lowest = cell;
+                    lowestHeight = height;
+                }
+            }
+            result[i] = lowest;
+        }
+        return result;
+    }
+
+    /* The border cell so many steps clockwise from (0, 0). */
+    private GridLocation borderCell(long step) {
+        if (rows == 1)
+            return new GridLocation(0, (int) step);
+        if (cols == 1)
+            return new GridLocation((int) step, 0);
+        if (step < cols)
+            return new GridLocation(0, (int) step);
+        step -= cols - 1;
+        if (step < rows)
+            return new GridLocation((int) step, cols - 1);
+        step -= rows - 1;
+        if (step < cols)
+            return new GridLocation(rows - 1, cols - 1 - (int) step);
+        step -= cols - 1;
+        return new GridLocation(rows - 1 - (int) step, 0);
+    }
+
+    /* A random value in [-1, 1) for a lattice point, from a SplitMix64 hash of it. */
+    private double lattice(int octave, long x, long y) {
+        long h = seed + 0x9E3779B97F4A7C15L * (octave + 1);
+        h ^= x * 0xC2B2AE3D27D4EB4FL;
+        h ^= y * 0x165667B19E3779F9L;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        h ^= h >>> 31;
+        return (h >>> 11) * 0x1.0p-52 - 1;
+    }
+
+    /* Interpolates between four corners with a smoothstep, so the noise has no creases at lattice lines. */
+    private static double blend(double top0, double top1, double bottom0, double bottom1, double fx, double fy) {
+        double sx = fx * fx * (3 - 2 * fx);
+        double sy = fy * fy * (3 - 2 * fy);
+        double top = top0 + sx * (top1 - top0);
+        double bottom = bottom0 + sx * (bottom1 - bottom0);
+        return top + sy * (bottom - top);
+    }
+
+    /* Writes a number of centimeters as meters with two decimals, without going through a double. */
+    private static void appendCents(StringBuilder out, long cents) {
+        if (cents < 0) {
+            out.append('-');
+            cents = -cents;
+        }
+        out.append(cents / 100).append('.');
+        long fraction = cents % 100;
+        if (fraction < 10)
+            out.append('0');
+        out.append(fraction);
+    }
+
+    /**
+     * Writes a terrain. Files ending in ".tiles" are written as tiled
+     * terrains, anything else as .terrain text.
+     *
+     * Usage: TerrainGenerator rows cols file [seed] [sources] [islands per million cells]
+     *
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: TerrainGenerator rows cols file [seed] [sources] [islands per million cells]");
+            return;
+        }
+        int rows = Integer.parseInt(args[0]);
+        int cols = Integer.parseInt(args[1]);
+        File file = new File(args[2]);
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+        int sources = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+        double islandDensity = args.length > 5 ? Double.parseDouble(args[5]) : 25;
+
+        long start = System.nanoTime();
+        var generator = new TerrainGenerator(rows, cols, seed, sources, islandDensity);
+        if (file.getName().endsWith(".tiles"))
+            generator.writeTiles(file);
+        else
+            generator.writeText(file);
+        System.out.printf("Wrote %d x %d terrain to %s in %d ms%n", rows, cols, file,
+                (System.nanoTime() - start) / 1_000_000);
+    }
+}
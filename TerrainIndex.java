@@ -0,0 +1,477 @@
+package tides;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * This class saves a terrain together with the indexes derived from it (its
+ * flood levels, island merge tree and elevation extrema) to a sidecar file,
+ * so the next time the terrain is opened none of them, nor the text of the
+ * terrain itself, has to be computed or parsed again.
+ *
+ * The sidecar sits next to the terrain's data: "X.terrain.index" beside a
+ * local X.terrain, or "N.data.index" in the DownloadCache for a web terrain.
+ * It is only used if it was written for the same version of this format,
+ * for a data file of the same length and modification time, and for the
+ * same size and water sources; otherwise the terrain is loaded normally and
+ * the sidecar rewritten.
+ *
+ * Layout: a header (magic "TIDX", version, data file length and modification
+ * time, a checksum of the size and sources, rows, cols, and the offset,
+ * length and CRC-32C of each section) followed by its own CRC-32C, then the
+ * sections - heights, flood levels, the merge tree's cell nodes, end
+ * heights, parents, group levels and group island counts, and the extrema.
+ * On load each section is memory-mapped, checked against its CRC and copied
+ * out in bulk.
+ */
+public final class TerrainIndex {
+    private static final int MAGIC = 0x54494458; // "TIDX"
+    private static final int VERSION = 1;
+
+    /* Where the first section starts; the header fits well inside. */
+    private static final int HEADER_BYTES = 512;
+
+    /* Sections, in file order. */
+    private static final int HEIGHTS = 0, LEVELS = 1, CELL_NODES = 2, END_HEIGHTS = 3, PARENTS = 4,
+            GROUP_LEVELS = 5, GROUP_ISLANDS = 6, EXTREMA = 7, SECTIONS = 8;
+
+    /* Bytes mapped at a time when reading a section. */
+    private static final int MAP_CHUNK = 1 << 30;
+
+    private final Terrain terrain;
+    private final RisingTides risingTides;
+    private final File file;
+    private final boolean loaded;
+
+    private TerrainIndex(Terrain terrain, RisingTides risingTides, File file, boolean loaded) {
+        this.terrain = terrain;
+        this.risingTides = risingTides;
+        this.file = file;
+        this.loaded = loaded;
+    }
+
+    /**
+     * Opens a terrain from its sidecar if it has an up-to-date one, and
+     * otherwise loads it, builds its indexes and writes the sidecar. The
+     * sidecar is only a cache: if it can't be written, say in a read-only
+     * directory or on a full disk, the terrain is still returned.
+     *
+     * @param terrainFile the .terrain file
+     * @param downloadNotifier told about download progress for web terrains
+     * @return TerrainIndex, the terrain and a RisingTides with its indexes ready
+     * @throws IOException if the terrain can't be read; a sidecar that can't be written is skipped
+     */
+    public static TerrainIndex open(File terrainFile, TerrainLoader.DownloadNotifier downloadNotifier)
+            throws IOException {
+        return open(terrainFile, downloadNotifier, null);
+    }
+
+    /**
+     * Same as open(File, DownloadNotifier), but if the terrain has to be
+     * loaded from its text, rows are handed to a listener as they are read.
+     *
+     * @param terrainFile the .terrain file
+     * @param downloadNotifier told about download progress for web terrains
+     * @param rowListener told about rows as they are read, or null
+     * @return TerrainIndex, the terrain and a RisingTides with its indexes ready
+     * @throws IOException if the terrain can't be read; a sidecar that can't be written is skipped
+     */
+    public static TerrainIndex open(File terrainFile, TerrainLoader.DownloadNotifier downloadNotifier,
+            TerrainLoader.RowListener rowListener) throws IOException {
+        return open(terrainFile, downloadNotifier, rowListener, true);
+    }
+
+    /**
+     * Same as open(File, DownloadNotifier), but never writes a sidecar, e.g.
+     * for terrains in a directory that should be left as it is. An
+     * up-to-date sidecar is still used; otherwise the terrain is loaded and
+     * its indexes are left for its RisingTides to build as queries need them.
+     *
+     * @param terrainFile the .terrain file
+     * @param downloadNotifier told about download progress for web terrains
+     * @return TerrainIndex, the terrain and a RisingTides over it
+     * @throws IOException if the terrain can't be read
+     */
+    public static TerrainIndex openReadOnly(File terrainFile, TerrainLoader.DownloadNotifier downloadNotifier)
+            throws IOException {
+        return open(terrainFile, downloadNotifier, null, false);
+    }
+
+    /* Reads the sidecar, or loads the terrain and, if asked to, builds and writes the sidecar. */
+    private static TerrainIndex open(File terrainFile, TerrainLoader.DownloadNotifier downloadNotifier,
+            TerrainLoader.RowListener rowListener, boolean writeSidecar) throws IOException {
+        File dataFile = TerrainLoader.localTerrainFile(terrainFile, downloadNotifier);
+        File indexFile = new File(dataFile.getPath() + ".index");
+
+        long start = System.nanoTime();
+        TerrainIndex index = read(dataFile, indexFile);
+        if (index != null) {
+            Metrics.counter("index.hit").increment();
+            Metrics.histogram("index.load").recordSince(start);
+            return index;
+        }
+
+        Metrics.counter("index.miss").increment();
+        Terrain terrain = TerrainLoader.loadTerrain(dataFile, downloadNotifier, rowListener);
+        var rt = new RisingTides(terrain);
+        if (!writeSidecar)
+            return new TerrainIndex(terrain, rt, null, false);
+
+        long buildStart = System.nanoTime();
+        FloodLevels floodLevels = rt.floodLevels();
+        IslandMergeTree tree = rt.islandMergeTree();
+        double[] extrema = rt.elevationExtrema();
+        Metrics.histogram("index.build").recordSince(buildStart);
+
+        try {
+            write(indexFile, dataFile, terrain, floodLevels, tree, extrema);
+        } catch (IOException e) {
+            System.err.println("Cannot write terrain index " + indexFile + "; continuing without it. ("
+                    + e.getMessage() + ")");
+            Metrics.counter("index.write.failed").increment();
+            indexFile = null;
+        }
+        return new TerrainIndex(terrain, rt, indexFile, false);
+    }
+
+    /**
+     * @return Terrain, the terrain's heights and sources
+     */
+    public Terrain terrain() {
+        return terrain;
+    }
+
+    /**
+     * @return RisingTides, over the terrain, with its flood levels, island
+     * merge tree and extrema already in place (unless opened read-only
+     * without a sidecar, when they are built as needed)
+     */
+    public RisingTides risingTides() {
+        return risingTides;
+    }
+
+    /**
+     * @return File, the sidecar, or null if none was read or written
+     */
+    public File file() {
+        return file;
+    }
+
+    /**
+     * @return boolean, true if the terrain came from the sidecar rather than being loaded and indexed
+     */
+    public boolean wasLoaded() {
+        return loaded;
+    }
+
+    /*
+     * Reads the sidecar, or returns null if it is missing, stale, damaged or
+     * can't be read at all; the terrain is then loaded from its text instead.
+     */
+    private static TerrainIndex read(File dataFile, File indexFile) {
+        if (!indexFile.isFile())
+            return null;
+
+        try (var channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES)
+                return null;
+            var header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+            }
+            header.flip();
+
+            /* Check the header is intact and for this data before trusting any of it. */
+            int headerLength = headerLength();
+            var crc = new CRC32C();
+            crc.update(header.array(), 0, headerLength);
+            if ((int) crc.getValue() != header.getInt(headerLength))
+                return null;
+            if (header.getInt() != MAGIC || header.getInt() != VERSION)
+                return null;
+            if (header.getLong() != dataFile.length() || header.getLong() != dataFile.lastModified())
+                return null;
+
+            long sourcesHash = header.getLong();
+            int rows = header.getInt();
+            int cols = header.getInt();
+            GridLocation[] sources = readSources(dataFile, rows, cols);
+            if (sources == null || sourcesHash != sourcesHash(rows, cols, sources))
+                return null;
+
+            var offsets = new long[SECTIONS];
+            var lengths = new long[SECTIONS];
+            var crcs = new int[SECTIONS];
+            for (int s = 0; s < SECTIONS; s++) {
+                offsets[s] = header.getLong();
+                lengths[s] = header.getLong();
+                crcs[s] = header.getInt();
+                if (offsets[s] < HEADER_BYTES || offsets[s] + lengths[s] > channel.size())
+                    return null;
+            }
+
+            int cells = rows * cols;
+            var heights = new double[rows][cols];
+            var levels = new double[cells];
+            var cellNodes = new int[cells];
+            var endHeights = new double[(int) (lengths[END_HEIGHTS] / Double.BYTES)];
+            var parents = new int[(int) (lengths[PARENTS] / Integer.BYTES)];
+            var groupLevels = new double[(int) (lengths[GROUP_LEVELS] / Double.BYTES)];
+            var groupIslands = new int[(int) (lengths[GROUP_ISLANDS] / Integer.BYTES)];
+            var extrema = new double[2];
+            if (lengths[HEIGHTS] != (long) cells * Double.BYTES || lengths[LEVELS] != (long) cells * Double.BYTES
+                    || lengths[CELL_NODES] != (long) cells * Integer.BYTES
+                    || lengths[EXTREMA] != 2 * Double.BYTES || endHeights.length != parents.length
+                    || groupLevels.length != groupIslands.length)
+                return null;
+
+            /* Map each section, check its CRC and copy it out. */
+            boolean intact = readSection(channel, offsets[HEIGHTS], lengths[HEIGHTS], crcs[HEIGHTS],
+                    (buffer, at) -> {
+                        var values = buffer.asDoubleBuffer();
+                        int cell = (int) (at / Double.BYTES);
+                        while (values.hasRemaining()) {
+                            int take = Math.min(values.remaining(), cols - cell % cols);
+                            values.get(heights[cell / cols], cell % cols, take);
+                            cell += take;
+                        }
+                    })
+                    && readSection(channel, offsets[LEVELS], lengths[LEVELS], crcs[LEVELS],
+                            (buffer, at) -> buffer.asDoubleBuffer().get(levels, (int) (at / Double.BYTES),
+                                    buffer.remaining() / Double.BYTES))
+                    && readSection(channel, offsets[CELL_NODES], lengths[CELL_NODES], crcs[CELL_NODES],
+                            (buffer, at) -> buffer.asIntBuffer().get(cellNodes, (int) (at / Integer.BYTES),
+                                    buffer.remaining() / Integer.BYTES))
+                    && readSection(channel, offsets[END_HEIGHTS], lengths[END_HEIGHTS], crcs[END_HEIGHTS],
+                            (buffer, at) -> buffer.asDoubleBuffer().get(endHeights, (int) (at / Double.BYTES),
+                                    buffer.remaining() / Double.BYTES))
+                    && readSection(channel, offsets[PARENTS], lengths[PARENTS], crcs[PARENTS],
+                            (buffer, at) -> buffer.asIntBuffer().get(parents, (int) (at / Integer.BYTES),
+                                    buffer.remaining() / Integer.BYTES))
+                    && readSection(channel, offsets[GROUP_LEVELS], lengths[GROUP_LEVELS], crcs[GROUP_LEVELS],
+                            (buffer, at) -> buffer.asDoubleBuffer().get(groupLevels, (int) (at / Double.BYTES),
+                                    buffer.remaining() / Double.BYTES))
+                    && readSection(channel, offsets[GROUP_ISLANDS], lengths[GROUP_ISLANDS], crcs[GROUP_ISLANDS],
+                            (buffer, at) -> buffer.asIntBuffer().get(groupIslands, (int) (at / Integer.BYTES),
+                                    buffer.remaining() / Integer.BYTES))
+                    && readSection(channel, offsets[EXTREMA], lengths[EXTREMA], crcs[EXTREMA],
+                            (buffer, at) -> buffer.asDoubleBuffer().get(extrema));
+            if (!intact)
+                return null;
+
+            var terrain = new Terrain(heights, sources);
+            var rt = new RisingTides(terrain);
+            FloodLevels floodLevels = FloodLevels.of(rows, cols, levels);
+            rt.useIndexes(floodLevels, IslandMergeTree.restore(floodLevels, cellNodes, endHeights, parents,
+                    groupLevels, groupIslands), extrema);
+            return new TerrainIndex(terrain, rt, indexFile, true);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            /* A header that passed its CRC but doesn't add up; rebuild. */
+            return null;
+        } catch (IOException | RuntimeException e) {
+            /* A sidecar that can't be opened or mapped, or sizes no array can hold; rebuild. */
+            System.err.println("Cannot read terrain index " + indexFile + "; rebuilding it. (" + e + ")");
+            Metrics.counter("index.read.failed").increment();
+            return null;
+        }
+    }
+
+    /* Copies part of a mapped section, given where in the section it starts. */
+    private interface SectionReader {
+        void read(ByteBuffer buffer, long at);
+    }
+
+    /* Maps a section a chunk at a time, handing each chunk on; false if its CRC doesn't match. */
+    private static boolean readSection(FileChannel channel, long offset, long length, int expectedCrc,
+            SectionReader reader) throws IOException {
+        var crc = new CRC32C();
+        for (long at = 0; at < length; at += MAP_CHUNK) {
+            long size = Math.min(MAP_CHUNK, length - at);
+            MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, offset + at, size);
+            crc.update(chunk.duplicate());
+            reader.read(chunk, at);
+        }
+        return (int) crc.getValue() == expectedCrc;
+    }
+
+    /* Writes the sidecar to a temporary file and then moves it into place; the temporary file is removed on failure. */
+    private static void write(File indexFile, File dataFile, Terrain terrain, FloodLevels floodLevels,
+            IslandMergeTree tree, double[] extrema) throws IOException {
+        File partial = new File(indexFile.getPath() + ".part");
+        try {
+            writeSections(partial, dataFile, terrain, floodLevels, tree, extrema);
+            Files.move(partial.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            partial.delete();
+            throw e;
+        }
+    }
+
+    /* Writes the header and every section to a file. */
+    private static void writeSections(File partial, File dataFile, Terrain terrain, FloodLevels floodLevels,
+            IslandMergeTree tree, double[] extrema) throws IOException {
+        int rows = floodLevels.rows();
+        int cols = floodLevels.cols();
+
+        try (var channel = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            var offsets = new long[SECTIONS];
+            var lengths = new long[SECTIONS];
+            var crcs = new int[SECTIONS];
+            var out = new SectionWriter(channel, HEADER_BYTES);
+
+            for (int s = 0; s < SECTIONS; s++) {
+                offsets[s] = out.position();
+                switch (s) {
+                case HEIGHTS:
+                    for (double[] row : terrain.heights) {
+                        out.putDoubles(row, row.length);
+                    }
+                    break;
+                case LEVELS:
+                    out.putDoubles(floodLevels.levels(), rows * cols);
+                    break;
+                case CELL_NODES:
+                    out.putInts(tree.cellNodes(), rows * cols);
+                    break;
+                case END_HEIGHTS:
+                    out.putDoubles(tree.endHeights(), tree.size());
+                    break;
+                case PARENTS:
+                    out.putInts(tree.parents(), tree.size());
+                    break;
+                case GROUP_LEVELS:
+                    out.putDoubles(tree.groupLevels(), tree.groupLevels().length);
+                    break;
+                case GROUP_ISLANDS:
+                    out.putInts(tree.groupIslands(), tree.groupIslands().length);
+                    break;
+                default:
+                    out.putDoubles(extrema, 2);
+                }
+                lengths[s] = out.position() - offsets[s];
+                crcs[s] = out.finishSection();
+            }
+
+            var header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION);
+            header.putLong(dataFile.length()).putLong(dataFile.lastModified());
+            header.putLong(sourcesHash(rows, cols, terrain.sources));
+            header.putInt(rows).putInt(cols);
+            for (int s = 0; s < SECTIONS; s++) {
+                header.putLong(offsets[s]).putLong(lengths[s]).putInt(crcs[s]);
+            }
+            var crc = new CRC32C();
+            crc.update(header.array(), 0, header.position());
+            header.putInt((int) crc.getValue());
+            header.clear();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+    }
+
+    /* Writes arrays through a buffer, keeping the CRC of the current section. */
+    private static final class SectionWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        private final CRC32C crc = new CRC32C();
+        private long position;
+
+        SectionWriter(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        long position() {
+            return position + buffer.position();
+        }
+
+        void putDoubles(double[] values, int count) throws IOException {
+            for (int i = 0; i < count;) {
+                int take = Math.min(count - i, buffer.remaining() / Double.BYTES);
+                buffer.asDoubleBuffer().put(values, i, take);
+                buffer.position(buffer.position() + take * Double.BYTES);
+                i += take;
+                if (!buffer.hasRemaining())
+                    flush();
+            }
+        }
+
+        void putInts(int[] values, int count) throws IOException {
+            for (int i = 0; i < count;) {
+                int take = Math.min(count - i, buffer.remaining() / Integer.BYTES);
+                buffer.asIntBuffer().put(values, i, take);
+                buffer.position(buffer.position() + take * Integer.BYTES);
+                i += take;
+                if (!buffer.hasRemaining())
+                    flush();
+            }
+        }
+
+        /* Writes out what's buffered and returns the section's CRC, starting the next. */
+        int finishSection() throws IOException {
+            flush();
+            int value = (int) crc.getValue();
+            crc.reset();
+
+            /* Keep every section 8-byte aligned. */
+            position = (position + 7) & ~7L;
+            return value;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+    }
+
+    /* The size and sources from the top of a local terrain file, or null if they don't match. */
+    private static GridLocation[] readSources(File dataFile, int rows, int cols) throws IOException {
+        try (var input = new Scanner(new BufferedInputStream(new FileInputStream(dataFile)))) {
+            if (!input.hasNextLine() || !input.nextLine().trim().equals("local"))
+                return null;
+            if (!input.hasNextInt() || input.nextInt() != rows || !input.hasNextInt() || input.nextInt() != cols)
+                return null;
+            if (!input.hasNextInt())
+                return null;
+
+            var sources = new GridLocation[input.nextInt()];
+            for (int i = 0; i < sources.length; i++) {
+                if (!input.hasNextInt())
+                    return null;
+                int row = input.nextInt();
+                if (!input.hasNextInt())
+                    return null;
+                sources[i] = new GridLocation(row, input.nextInt());
+            }
+            return sources;
+        } catch (NegativeArraySizeException e) {
+            return null;
+        }
+    }
+
+    /* A checksum of the terrain's size and water sources. */
+    private static long sourcesHash(int rows, int cols, GridLocation[] sources) {
+        var bytes = ByteBuffer.allocate(12 + 8 * sources.length);
+        bytes.putInt(rows).putInt(cols).putInt(sources.length);
+        for (GridLocation source : sources) {
+            bytes.putInt(source.row).putInt(source.col);
+        }
+        var crc = new CRC32C();
+        crc.update(bytes.array());
+        return crc.getValue();
+    }
+
+    /* Bytes of header before its CRC. */
+    private static int headerLength() {
+        return 4 + 4 + 8 + 8 + 8 + 4 + 4 + SECTIONS * (8 + 8 + 4);
+    }
+}
@@ -5,6 +5,7 @@ import java.util.*;
 import java.net.*;
 import java.nio.*;
 import java.nio.channels.*;
+import java.nio.file.*;
 
 /**
  * This class loads the terrain from a provided .terrain file.
@@ -20,6 +21,23 @@ public class TerrainLoader {
         public void onProgress(int bytesRead, int bytesTotal);
     }
 
+    /*
+     * Interface for receiving the terrain's rows as they are read. onStart is 
+     * called once the size and sources are known, with the (still empty) 
+     * heights array the rows are read into. onRows is then called after each 
+     * band of rows, so rows before toRow are complete and can be used while 
+     * the rest load. Both are called on the loading thread.
+     */
+    public interface RowListener {
+        public default void onStart(double[][] heights, GridLocation[] sources) {
+        }
+
+        public void onRows(double[][] heights, int fromRow, int toRow);
+    }
+
+    /* Roughly how many cells are read between calls to RowListener.onRows. */
+    private static final int ROW_BAND_CELLS = 1 << 16;
+
     /*
      * Progress monitor channel type. Adapted from this Stack Overflow post:
      * https://stackoverflow.com/a/59667209
@@ -70,8 +88,43 @@ public class TerrainLoader {
     }
 
     public static Terrain loadTerrain(File filename, DownloadNotifier downloadNotifier) throws IOException {
+        return loadTerrain(filename, downloadNotifier, null);
+    }
+
+    /**
+     * Loads a terrain, handing each band of rows to a listener as soon as it 
+     * has been read, so callers can show or use the top of a large terrain 
+     * before the rest has loaded.
+     * 
+     * @param filename of the .terrain file
+     * @param downloadNotifier told about download progress for web terrains
+     * @param rowListener told about the rows as they are read, or null
+     * @return Terrain, the loaded terrain
+     * @throws IOException if the terrain can't be read
+     */
+    public static Terrain loadTerrain(File filename, DownloadNotifier downloadNotifier, RowListener rowListener)
+            throws IOException {
+        long start = System.nanoTime();
+        var event = new TideEvents.Load();
+        event.begin();
+        event.file = filename.getPath();
+
+        Terrain terrain = loadTerrain(filename, downloadNotifier, rowListener, event);
+
+        event.cells = (long) terrain.heights.length * (terrain.heights.length == 0 ? 0 : terrain.heights[0].length);
+        event.commit();
+        Metrics.histogram("terrain.load").recordSince(start);
+        Metrics.counter("terrain.load.bytes").add(event.bytes);
+        Metrics.counter("terrain.load.cells").add(event.cells);
+        return terrain;
+    }
+
+    /* Loads the terrain in the given file, noting what was read in the event. */
+    private static Terrain loadTerrain(File filename, DownloadNotifier downloadNotifier, RowListener rowListener,
+            TideEvents.Load event) throws IOException {
         try (var br = new FileInputStream(filename)) {
-            return loadTerrain(br, downloadNotifier);
+            event.bytes = filename.length();
+            return loadTerrain(br, downloadNotifier, rowListener, event);
         }
     }
 
@@ -97,13 +150,15 @@ public class TerrainLoader {
         return s.nextDouble();
     }
 
-    private static Terrain loadTerrain(InputStream stream, DownloadNotifier downloadNotifier) throws IOException {
+    private static Terrain loadTerrain(InputStream stream, DownloadNotifier downloadNotifier, RowListener rowListener,
+            TideEvents.Load event) throws IOException {
         try (var input = new Scanner(stream)) {
             /* Determine whether this is a local file or whether it's remote. */
             var source = nextLine(input);
             if (!source.equals("local")) {
-                return loadWebTerrain(source, downloadNotifier);
+                return loadWebTerrain(source, downloadNotifier, rowListener, event);
             }
+            long parseStart = System.nanoTime();
 
             /* Read the terrain size. */
             int numRows = nextInt(input);
@@ -119,13 +174,23 @@ public class TerrainLoader {
                 sources[i] = new GridLocation(row, col);
             }
 
-            /* Read the height data. */
-            for (int row = 0; row < numRows; row++) {
-                for (int col = 0; col < numCols; col++) {
-                    heights[row][col] = nextDouble(input);
+            if (rowListener != null)
+                rowListener.onStart(heights, sources);
+
+            /* Read the height data, a band of rows at a time. */
+            int bandRows = Math.max(1, ROW_BAND_CELLS / Math.max(1, numCols));
+            for (int bandStart = 0; bandStart < numRows; bandStart += bandRows) {
+                int bandEnd = Math.min(numRows, bandStart + bandRows);
+                for (int row = bandStart; row < bandEnd; row++) {
+                    for (int col = 0; col < numCols; col++) {
+                        heights[row][col] = nextDouble(input);
+                    }
                 }
+                if (rowListener != null)
+                    rowListener.onRows(heights, bandStart, bandEnd);
             }
 
+            event.parseMillis = (System.nanoTime() - parseStart) / 1_000_000;
             return new Terrain(heights, sources);
         } catch (RuntimeException e) {
             throw new IOException("Error reading terrain.", e);
@@ -142,16 +207,39 @@ public class TerrainLoader {
     }
 
     /* Loads the terrain from the given URL. */
-    private static Terrain loadWebTerrain(String source, DownloadNotifier downloadNotifier) throws IOException {
-        /* Key file: Name is hash, contents are URL. */
-        File keyFile = new File("DownloadCache/" + source.hashCode() + ".key");
+    private static Terrain loadWebTerrain(String source, DownloadNotifier downloadNotifier, RowListener rowListener,
+            TideEvents.Load event) throws IOException {
+        event.web = true;
+        event.cacheHit = isCached(source);
+        Metrics.counter(event.cacheHit ? "terrain.cache.hit" : "terrain.cache.miss").increment();
+
+        /* It's now cached, so load it. */
+        return loadTerrain(downloadTerrain(source, downloadNotifier), downloadNotifier, rowListener, event);
+    }
+
+    /* Key file: Name is hash, contents are URL. */
+    private static File keyFileFor(String source) {
+        return new File("DownloadCache/" + source.hashCode() + ".key");
+    }
+
+    /* Data file: Name is hash, contents are actual contents. */
+    private static File dataFileFor(String source) {
+        return new File("DownloadCache/" + source.hashCode() + ".data");
+    }
 
-        /* Data file: Name is hash, contents are actual contents. */
-        File dataFile = new File("DownloadCache/" + source.hashCode() + ".data");
+    /* Sees whether the terrain at the given URL is already downloaded. */
+    private static boolean isCached(String source) throws IOException {
+        File keyFile = keyFileFor(source);
+        return keyFile.exists() && dataFileFor(source).exists() && isKeyFor(keyFile, source);
+    }
 
+    /* Downloads the terrain at the given URL, if needed, and returns the cached copy. */
+    private static File downloadTerrain(String source, DownloadNotifier downloadNotifier) throws IOException {
+        File keyFile = keyFileFor(source);
+        File dataFile = dataFileFor(source);
 
         /* If this isn't cached, go cache it. */
-        if (!keyFile.exists() || !dataFile.exists() || !isKeyFor(keyFile, source)) {
+        if (!isCached(source)) {
             /*
              * Otherwise, we need to download this file. These next lines are adapted from
              * https://stackoverflow.com/questions/30405695/java-nio-filechannels-track-
@@ -171,7 +259,163 @@ public class TerrainLoader {
             }
         }
 
-        /* It's now cached, so load it. */
-        return loadTerrain(dataFile, downloadNotifier);
+        return dataFile;
+    }
+
+    /**
+     * Loads a terrain as a TiledTerrain, so that it is paged in from disk 
+     * rather than held on the heap.
+     * 
+     * The first time a terrain is loaded this way it is converted, one band 
+     * of rows at a time, to a tiled file stored next to it (or next to its 
+     * download, for web terrains). Later loads reuse that file until the 
+     * terrain file is modified.
+     * 
+     * @param filename of the .terrain file
+     * @param downloadNotifier told about download progress for web terrains
+     * @return TiledTerrain, the loaded terrain
+     * @throws IOException if the terrain can't be read or converted
+     */
+    public static TiledTerrain loadTiledTerrain(File filename, DownloadNotifier downloadNotifier) throws IOException {
+        filename = localTerrainFile(filename, downloadNotifier);
+        File tiledFile = new File(filename.getPath() + ".tiles");
+        if (!tiledFile.exists() || tiledFile.lastModified() < filename.lastModified()) {
+            File partial = new File(tiledFile.getPath() + ".part");
+            try (var input = new FileInputStream(filename)) {
+                convertToTiles(input, partial, TiledTerrain.DEFAULT_TILE_SIZE);
+            }
+            Files.move(partial.toPath(), tiledFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return TiledTerrain.open(tiledFile, TiledTerrain.DEFAULT_CACHE_TILES);
+    }
+
+    /*
+     * The file holding the terrain's heights: the .terrain file itself for a 
+     * local terrain, or its (downloaded if need be) cached copy for a web one.
+     */
+    static File localTerrainFile(File filename, DownloadNotifier downloadNotifier) throws IOException {
+        String source;
+        try (var reader = new BufferedReader(new FileReader(filename))) {
+            source = reader.readLine();
+        }
+        if (source == null)
+            throw new IOException("Unexpected end of file.");
+        if (!source.trim().equals("local"))
+            return localTerrainFile(downloadTerrain(source.trim(), downloadNotifier), downloadNotifier);
+        return filename;
+    }
+
+    /**
+     * Reads just the size of a terrain from its header, without reading its
+     * heights. Web terrains are downloaded first if they aren't cached.
+     * 
+     * @param filename of the .terrain file
+     * @param downloadNotifier told about download progress for web terrains
+     * @return int[], the number of rows and the number of columns
+     * @throws IOException if the terrain can't be read
+     */
+    public static int[] readSize(File filename, DownloadNotifier downloadNotifier) throws IOException {
+        try (var stream = new FileInputStream(localTerrainFile(filename, downloadNotifier))) {
+            var input = new Tokenizer(stream);
+            if (!input.next().equals("local"))
+                throw new IOException("Malformed file.");
+            int numRows = input.nextInt();
+            int numCols = input.nextInt();
+            return new int[] { numRows, numCols };
+        }
+    }
+
+    /* Streams a local .terrain file into a tiled file without building the whole grid. */
+    private static void convertToTiles(InputStream stream, File tiledFile, int tileSize) throws IOException {
+        var input = new Tokenizer(stream);
+        if (!input.next().equals("local"))
+            throw new IOException("Malformed file.");
+
+        /* Read the terrain size. */
+        int numRows = input.nextInt();
+        int numCols = input.nextInt();
+
+        /* Read the water sources. */
+        int numSources = input.nextInt();
+        var sources = new GridLocation[numSources];
+        for (int i = 0; i < numSources; i++) {
+            int row = input.nextInt();
+            int col = input.nextInt();
+            sources[i] = new GridLocation(row, col);
+        }
+
+        /* Read the height data, one row at a time. */
+        try (var writer = new TiledTerrain.Writer(tiledFile, numRows, numCols, sources, tileSize)) {
+            var heights = new double[numCols];
+            for (int row = 0; row < numRows; row++) {
+                for (int col = 0; col < numCols; col++) {
+                    heights[col] = input.nextDouble();
+                }
+                writer.writeRow(heights);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Error reading terrain.", e);
+        }
+    }
+
+    /*
+     * Splits a stream into whitespace-separated tokens. Much faster than Scanner
+     * on the large terrains, since it does no regular expression matching.
+     */
+    private static final class Tokenizer {
+        private final InputStream in;
+        private final byte[] buffer = new byte[1 << 16];
+        private int pos = 0;
+        private int limit = 0;
+        private final StringBuilder token = new StringBuilder();
+
+        Tokenizer(InputStream in) {
+            this.in = in;
+        }
+
+        /* Returns the next byte, or -1 at the end of the stream. */
+        private int read() throws IOException {
+            if (pos == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                pos = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[pos++] & 0xFF;
+        }
+
+        String next() throws IOException {
+            int ch = read();
+            while (ch != -1 && Character.isWhitespace(ch)) {
+                ch = read();
+            }
+            if (ch == -1)
+                throw new IOException("Unexpected end of file.");
+
+            token.setLength(0);
+            while (ch != -1 && !Character.isWhitespace(ch)) {
+                token.append((char) ch);
+                ch = read();
+            }
+            return token.toString();
+        }
+
+        int nextInt() throws IOException {
+            try {
+                return Integer.parseInt(next());
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed file.");
+            }
+        }
+
+        double nextDouble() throws IOException {
+            try {
+                return Double.parseDouble(next());
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed file.");
+            }
+        }
     }
 }
@@ -0,0 +1,121 @@
+package tides;
+
+/**
+ * This class keeps statistics about a terrain up to date as its rows are
+ * loaded, so the top of a large terrain can be described and queried before
+ * the rest has arrived. Pass it (or a listener that forwards to it) to
+ * TerrainLoader.loadTerrain.
+ *
+ * Rows are added on the loading thread and read from any other, so every
+ * method is synchronized.
+ */
+public final class TerrainStats implements TerrainLoader.RowListener {
+    private double[][] heights;
+    private int rows, cols;
+    private int rowsLoaded = 0;
+
+    private double minHeight = Double.POSITIVE_INFINITY;
+    private double maxHeight = Double.NEGATIVE_INFINITY;
+    private double totalHeight = 0;
+
+    @Override
+    public synchronized void onStart(double[][] heights, GridLocation[] sources) {
+        this.heights = heights;
+        rows = heights.length;
+        cols = rows == 0 ? 0 : heights[0].length;
+        rowsLoaded = 0;
+        minHeight = Double.POSITIVE_INFINITY;
+        maxHeight = Double.NEGATIVE_INFINITY;
+        totalHeight = 0;
+    }
+
+    @Override
+    public synchronized void onRows(double[][] heights, int fromRow, int toRow) {
+        if (this.heights != heights)
+            onStart(heights, null);
+
+        for (int row = fromRow; row < toRow; row++) {
+            double[] line = heights[row];
+            for (int col = 0; col < line.length; col++) {
+                double height = line[col];
+                minHeight = height < minHeight ? height : minHeight;
+                maxHeight = height > maxHeight ? height : maxHeight;
+                totalHeight += height;
+            }
+        }
+        rowsLoaded = Math.max(rowsLoaded, toRow);
+    }
+
+    /**
+     * @return int, the number of rows in the whole terrain, or 0 before loading starts
+     */
+    public synchronized int rows() {
+        return rows;
+    }
+
+    public synchronized int cols() {
+        return cols;
+    }
+
+    /**
+     * @return int, how many rows, from the top, have been loaded
+     */
+    public synchronized int rowsLoaded() {
+        return rowsLoaded;
+    }
+
+    /**
+     * @return boolean, true once every row has been loaded
+     */
+    public synchronized boolean isComplete() {
+        return heights != null && rowsLoaded == rows;
+    }
+
+    /**
+     * @return double, the lowest height in the loaded rows
+     */
+    public synchronized double minHeight() {
+        return minHeight;
+    }
+
+    /**
+     * @return double, the highest height in the loaded rows
+     */
+    public synchronized double maxHeight() {
+        return maxHeight;
+    }
+
+    /**
+     * @return double, the mean height of the loaded rows, or NaN if none are loaded
+     */
+    public synchronized double meanHeight() {
+        long cells = (long) rowsLoaded * cols;
+        return cells == 0 ? Double.NaN : totalHeight / cells;
+    }
+
+    /**
+     * @param row of the cell
+     * @param col of the cell
+     * @return double, the cell's height, or NaN if its row hasn't loaded yet
+     */
+    public synchronized double height(int row, int col) {
+        if (row < 0 || row >= rowsLoaded || col < 0 || col >= cols)
+            return Double.NaN;
+        return heights[row][col];
+    }
+
+    /**
+     * Counts the loaded cells higher than a water height. This ignores where
+     * the water can actually reach, which needs the whole terrain.
+     *
+     * @param height of the water
+     * @return long, the number of loaded cells above it
+     */
+    public synchronized long cellsAbove(double height) {
+        long result = 0;
+        for (int row = 0; row < rowsLoaded; row++) {
+            result += GridKernels.countAbove(heights[row], height);
+        }
+        return result;
+    }
+}
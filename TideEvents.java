@@ -0,0 +1,87 @@
+package tides;
+
+import jdk.jfr.*;
+
+/**
+ * This class holds the JDK Flight Recorder events the simulation emits. They
+ * cost nothing unless a recording is running, e.g. one started with
+ * -XX:StartFlightRecording, and then show up under "Rising Tides".
+ */
+final class TideEvents {
+    private TideEvents() {
+    }
+
+    @Name("tides.TerrainLoad")
+    @Label("Terrain Load")
+    @Category("Rising Tides")
+    @Description("Reading a .terrain file, including any download")
+    static final class Load extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Bytes Parsed")
+        @DataAmount
+        long bytes;
+
+        @Label("Cells")
+        long cells;
+
+        @Label("Parse Time")
+        @Timespan(Timespan.MILLISECONDS)
+        long parseMillis;
+
+        @Label("Web Terrain")
+        boolean web;
+
+        @Label("Download Cache Hit")
+        boolean cacheHit;
+    }
+
+    @Name("tides.Flood")
+    @Label("Flood")
+    @Category("Rising Tides")
+    @Description("One floodfill from the water sources")
+    static final class Flood extends Event {
+        @Label("Water Height")
+        double height;
+
+        @Label("Cells Visited")
+        long cellsVisited;
+
+        @Label("Frontier Peak")
+        long frontierPeak;
+    }
+
+    @Name("tides.Islands")
+    @Label("Island Count")
+    @Category("Rising Tides")
+    @Description("Counting the islands at one water height")
+    static final class Islands extends Event {
+        @Label("Water Height")
+        double height;
+
+        @Label("Islands")
+        int islands;
+
+        @Label("Tiled")
+        boolean tiled;
+
+        @Label("Unions")
+        long unions;
+
+        @Label("Finds")
+        long finds;
+
+        @Label("Average Path Length")
+        double averagePathLength;
+    }
+
+    @Name("tides.Paint")
+    @Label("Paint")
+    @Category("Rising Tides")
+    @Description("Painting the terrain, or the clipped part of it")
+    static final class Paint extends Event {
+        @Label("Pixels")
+        long pixels;
+    }
+}
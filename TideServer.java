@@ -0,0 +1,364 @@
+package tides;
+
+import com.sun.net.httpserver.*;
+import java.awt.image.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+import javax.imageio.*;
+
+/**
+ * This class serves flood and island queries over HTTP, so tools can ask
+ * about a terrain without running the Driver. Each terrain is loaded once,
+ * the first time it is asked about, and stays in memory along with its
+ * flood levels and island merge tree; every request against it shares those.
+ *
+ * All endpoints take GET query parameters and name the terrain by its file
+ * name without ".terrain":
+ *
+ *   /terrains                                   the terrains that can be loaded
+ *   /flood?terrain=T&height=H[&format=png|rle]  the flooded cells
+ *   /land?terrain=T&height=H                    cells of land above water
+ *   /landLost?terrain=T&height=H&newHeight=N    land lost going from H to N
+ *   /islands?terrain=T&height=H                 number of islands
+ *   /point?terrain=T&height=H&row=R&col=C       one cell
+ *
+ * Answers other than the flood mask are JSON. The "rle" flood format is the
+ * binary form of a RunLengthMask.
+ *
+ * Requests run on virtual threads when the JDK has them, and on a cached
+ * thread pool otherwise.
+ */
+public final class TideServer implements Closeable {
+    /* Colors of the PNG flood mask. */
+    private static final int LAND_RGB = 0xF0EAD6;
+    private static final int WATER_RGB = 0x003153; // Prussian blue, as in the visualizer
+
+    /* Terrain names that can be asked for; anything else could reach outside the directory. */
+    private static final Pattern TERRAIN_NAME = Pattern.compile("[A-Za-z0-9_-]+");
+
+    private final File terrainDirectory;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /* Terrains by name, each loaded by whichever request asks for it first. */
+    private final ConcurrentMap<String, Future<RisingTides>> terrains = new ConcurrentHashMap<>();
+
+    /* Thrown by handlers to answer with an error status. */
+    private static final class RequestException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /* One endpoint's work. */
+    private interface Handler {
+        void handle(HttpExchange exchange, Map<String, String> query) throws Exception;
+    }
+
+    /**
+     * Creates a server for the terrains in a directory. It doesn't accept
+     * requests until started.
+     *
+     * @param terrainDirectory holding the .terrain files
+     * @param address to listen on, e.g. new InetSocketAddress(InetAddress.getLoopbackAddress(), 8080);
+     *                port 0 picks a free port
+     * @throws IOException if the address can't be bound
+     */
+    public TideServer(File terrainDirectory, InetSocketAddress address) throws IOException {
+        this.terrainDirectory = terrainDirectory;
+        server = HttpServer.create(address, 0);
+        executor = newExecutor();
+        server.setExecutor(executor);
+
+        route("/terrains", this::listTerrains);
+        route("/flood", this::flood);
+        route("/land", this::land);
+        route("/landLost", this::landLost);
+        route("/islands", this::islands);
+        route("/point", this::point);
+    }
+
+    /**
+     * Starts accepting requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Returns the port the server listens on, which is useful when it was
+     * created with port 0.
+     *
+     * @return int, the port
+     */
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops the server, letting requests in progress finish for up to a
+     * second.
+     */
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    /* A virtual thread per request on JDKs that have them (21 and up), else a cached pool. */
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                var thread = new Thread(runnable, "tide-server");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /* Serves an endpoint, turning failures into error responses and timing each request. */
+    private void route(String path, Handler handler) {
+        server.createContext(path, exchange -> {
+            long start = System.nanoTime();
+            try (exchange) {
+                try {
+                    if (!exchange.getRequestURI().getPath().equals(path))
+                        throw new RequestException(404, "No such endpoint.");
+                    if (!exchange.getRequestMethod().equals("GET"))
+                        throw new RequestException(405, "Only GET is supported.");
+
+                    handler.handle(exchange, parseQuery(exchange.getRequestURI()));
+                } catch (RequestException e) {
+                    sendError(exchange, e.status, e.getMessage());
+                } catch (Exception e) {
+                    sendError(exchange, 500, String.valueOf(e.getMessage()));
+                }
+            } finally {
+                Metrics.counter("server.requests").increment();
+                Metrics.histogram("server" + path).recordSince(start);
+            }
+        });
+    }
+
+    /* Splits a query string into its (decoded) parameters. */
+    private static Map<String, String> parseQuery(URI uri) {
+        var result = new HashMap<String, String>();
+        String query = uri.getRawQuery();
+        if (query == null)
+            return result;
+
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals <= 0)
+                continue;
+            result.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+
+    private static String parameter(Map<String, String> query, String name) throws RequestException {
+        String value = query.get(name);
+        if (value == null)
+            throw new RequestException(400, "Missing parameter: " + name);
+        return value;
+    }
+
+    private static double doubleParameter(Map<String, String> query, String name) throws RequestException {
+        try {
+            /* Infinity and NaN can't be written as JSON numbers. */
+            double value = Double.parseDouble(parameter(query, name));
+            if (!Double.isFinite(value))
+                throw new NumberFormatException();
+            return value;
+        } catch (NumberFormatException e) {
+            throw new RequestException(400, "Not a finite number: " + name);
+        }
+    }
+
+    private static int intParameter(Map<String, String> query, String name) throws RequestException {
+        try {
+            return Integer.parseInt(parameter(query, name));
+        } catch (NumberFormatException e) {
+            throw new RequestException(400, "Not an integer: " + name);
+        }
+    }
+
+    /* The loaded terrain the request names, loading it if this is the first request for it. */
+    private RisingTides terrain(Map<String, String> query) throws Exception {
+        String name = parameter(query, "terrain");
+        if (!TERRAIN_NAME.matcher(name).matches() || !new File(terrainDirectory, name + ".terrain").isFile())
+            throw new RequestException(404, "No such terrain: " + name);
+
+        var load = new FutureTask<RisingTides>(() -> {
+            Terrain terrain = TerrainLoader.loadTerrain(new File(terrainDirectory, name + ".terrain"),
+                    (bytes, total) -> {});
+            return new RisingTides(terrain);
+        });
+        Future<RisingTides> loaded = terrains.putIfAbsent(name, load);
+        if (loaded == null) {
+            loaded = load;
+            load.run();
+        }
+
+        try {
+            return loaded.get();
+        } catch (ExecutionException e) {
+            /* Let a later request try again. */
+            terrains.remove(name, loaded);
+            throw new RequestException(500, "Can't load " + name + ": " + e.getCause().getMessage());
+        }
+    }
+
+    /* The names of the .terrain files in the terrain directory that can be asked for. */
+    private void listTerrains(HttpExchange exchange, Map<String, String> query) throws IOException {
+        File[] files = terrainDirectory.listFiles((dir, name) -> name.endsWith(".terrain"));
+        var names = new ArrayList<String>();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName().substring(0, file.getName().length() - ".terrain".length());
+            if (TERRAIN_NAME.matcher(name).matches() && file.isFile())
+                names.add(name);
+        }
+        Collections.sort(names);
+
+        var json = new StringBuilder("{\"terrains\":[");
+        for (int i = 0; i < names.size(); i++) {
+            json.append(i == 0 ? "" : ",").append(jsonString(names.get(i)));
+        }
+        sendJson(exchange, json.append("]}").toString());
+    }
+
+    private void flood(HttpExchange exchange, Map<String, String> query) throws Exception {
+        RisingTides rt = terrain(query);
+        double height = doubleParameter(query, "height");
+        String format = query.getOrDefault("format", "png");
+
+        if (format.equals("png")) {
+            send(exchange, 200, "image/png", toPng(rt.floodLevels().floodedMask(height)));
+        } else if (format.equals("rle")) {
+            send(exchange, 200, "application/octet-stream", rt.floodLevels().runLengthMask(height).toBytes());
+        } else {
+            throw new RequestException(400, "Unknown format: " + format);
+        }
+    }
+
+    private void land(HttpExchange exchange, Map<String, String> query) throws Exception {
+        RisingTides rt = terrain(query);
+        double height = doubleParameter(query, "height");
+        sendJson(exchange, "{\"height\":" + height + ",\"land\":" + rt.floodLevels().landCells(height) + "}");
+    }
+
+    private void landLost(HttpExchange exchange, Map<String, String> query) throws Exception {
+        RisingTides rt = terrain(query);
+        double height = doubleParameter(query, "height");
+        double newHeight = doubleParameter(query, "newHeight");
+        FloodLevels levels = rt.floodLevels();
+        int lost = levels.landCells(height) - levels.landCells(newHeight);
+        sendJson(exchange, "{\"height\":" + height + ",\"newHeight\":" + newHeight + ",\"landLost\":" + lost + "}");
+    }
+
+    private void islands(HttpExchange exchange, Map<String, String> query) throws Exception {
+        RisingTides rt = terrain(query);
+        double height = doubleParameter(query, "height");
+        sendJson(exchange, "{\"height\":" + height + ",\"islands\":" + rt.islandMergeTree().islandsAt(height) + "}");
+    }
+
+    private void point(HttpExchange exchange, Map<String, String> query) throws Exception {
+        RisingTides rt = terrain(query);
+        double height = doubleParameter(query, "height");
+        int row = intParameter(query, "row");
+        int col = intParameter(query, "col");
+
+        FloodLevels levels = rt.floodLevels();
+        if (row < 0 || row >= levels.rows() || col < 0 || col >= levels.cols())
+            throw new RequestException(400, "Cell (" + row + ", " + col + ") is off the terrain.");
+
+        var cell = new GridLocation(row, col);
+        double level = levels.level(row, col);
+        int island = rt.islandMergeTree().islandAt(height, cell);
+        sendJson(exchange, "{\"row\":" + row + ",\"col\":" + col
+                + ",\"height\":" + height
+                + ",\"heightAboveWater\":" + rt.heightAboveWater(height, cell)
+                + ",\"flooded\":" + (level <= height)
+                + ",\"floodLevel\":" + (Double.isInfinite(level) ? "null" : String.valueOf(level))
+                + ",\"island\":" + (island < 0 ? "null" : String.valueOf(island)) + "}");
+    }
+
+    /* The mask as a two-color PNG, one pixel per cell. */
+    private static byte[] toPng(FloodMask mask) throws IOException {
+        var colors = new IndexColorModel(1, 2,
+                new byte[] { (byte) (LAND_RGB >> 16), (byte) (WATER_RGB >> 16) },
+                new byte[] { (byte) (LAND_RGB >> 8), (byte) (WATER_RGB >> 8) },
+                new byte[] { (byte) LAND_RGB, (byte) WATER_RGB });
+        var image = new BufferedImage(mask.cols(), mask.rows(), BufferedImage.TYPE_BYTE_BINARY, colors);
+        WritableRaster raster = image.getRaster();
+        for (int row = 0; row < mask.rows(); row++) {
+            for (int col = 0; col < mask.cols(); col++) {
+                if (mask.get(row, col))
+                    raster.setSample(col, row, 0, 1);
+            }
+        }
+
+        var out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    private static void sendJson(HttpExchange exchange, String json) throws IOException {
+        send(exchange, 200, "application/json", json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        String json = "{\"error\":" + jsonString(message) + "}";
+        send(exchange, status, "application/json", json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /* A string as a quoted JSON string, with quotes, backslashes and control characters escaped. */
+    private static String jsonString(String value) {
+        var json = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                json.append('\\').append(c);
+            else if (c < 0x20)
+                json.append(String.format("\\u%04x", (int) c));
+            else
+                json.append(c);
+        }
+        return json.append('"').toString();
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    /**
+     * Serves the terrains in a directory on localhost until the process is
+     * stopped.
+     *
+     * @param args optionally the terrain directory (default the current one) and
+     *             the port (default 8080)
+     * @throws IOException if the server can't start
+     */
+    public static void main(String[] args) throws IOException {
+        File directory = new File(args.length > 0 ? args[0] : ".");
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+
+        var server = new TideServer(directory, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        server.start();
+        System.out.println("Serving " + directory + " on http://localhost:" + server.port() + "/");
+    }
+}
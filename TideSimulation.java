@@ -0,0 +1,287 @@
+package tides;
+
+import java.util.*;
+
+/**
+ * This class runs a terrain through time with a different water level at
+ * each source, such as inlets that see the tide at different heights and
+ * times, and reports the flooding after every step.
+ *
+ * Water at a level poured in at one source floods one basin of the
+ * terrain's BasinTree up to that level, and each such region is one range
+ * of the tree's cell layout. The flooding for all the sources is therefore
+ * a union of at most one range per source. Each step works out the new
+ * ranges, compares them with the last step's, and floods or dries only the
+ * cells in the difference, so a step costs a few searches per source plus
+ * the cells that actually changed.
+ */
+public final class TideSimulation {
+    /* Period of the principal lunar tide, which gives most coasts two tides a day. */
+    public static final double M2_PERIOD_HOURS = 12.42;
+
+    /**
+     * The state of the terrain after one step.
+     */
+    public static final class Step {
+        private final int land;
+        private final int flooded;
+        private final int dried;
+        private final int[] floodedBySource;
+
+        Step(int land, int flooded, int dried, int[] floodedBySource) {
+            this.land = land;
+            this.flooded = flooded;
+            this.dried = dried;
+            this.floodedBySource = floodedBySource;
+        }
+
+        /**
+         * @return int, the number of cells above water
+         */
+        public int totalVisibleLand() {
+            return land;
+        }
+
+        /**
+         * @return int, the cells that went under water during this step
+         */
+        public int newlyFlooded() {
+            return flooded;
+        }
+
+        /**
+         * @return int, the cells that came out of the water during this step
+         */
+        public int newlyDry() {
+            return dried;
+        }
+
+        /**
+         * @param source index into the sources
+         * @return int, the number of cells that source's water reaches, counting
+         *         cells other sources reach too
+         */
+        public int floodedBy(int source) {
+            return floodedBySource[source];
+        }
+
+        @Override
+        public String toString() {
+            return flooded + " cells flooded, " + dried + " cells dried, " + land + " cells of land";
+        }
+    }
+
+    /**
+     * Told about each step as a run goes.
+     */
+    public interface StepListener {
+        /**
+         * @param time index of the step
+         * @param step the state after it
+         * @param flooded cells after it; this is updated in place by the next step, so copy it to keep it
+         */
+        public void onStep(int time, Step step, FloodMask flooded);
+    }
+
+    private final BasinTree basins;
+    private final GridLocation[] sources;
+    private final int cols;
+    private final FloodMask flooded;
+    private int land;
+
+    /* The flooded ranges of the basin layout, as sorted, disjoint (first, end) pairs. */
+    private int[] ranges = new int[0];
+
+    /**
+     * Starts a simulation with every cell dry.
+     *
+     * @param terrain heights and sources
+     */
+    public TideSimulation(Terrain terrain) {
+        this(new ArrayHeightGrid(terrain.heights), terrain.sources, null);
+    }
+
+    /**
+     * Starts a simulation with every cell dry.
+     *
+     * @param terrain heights of every cell
+     * @param sources of water, in the order their levels are given
+     * @param basins of the terrain, such as RisingTides.basinTree(), or null to build them
+     */
+    public TideSimulation(HeightGrid terrain, GridLocation[] sources, BasinTree basins) {
+        if ((long) terrain.rows() * terrain.cols() > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Grid is too large: " + terrain.rows() + " x " + terrain.cols());
+        this.basins = basins != null ? basins : BasinTree.build(terrain);
+        this.sources = sources.clone();
+        this.cols = terrain.cols();
+        this.flooded = new FloodMask(terrain.rows(), cols);
+        this.land = terrain.rows() * cols;
+    }
+
+    /**
+     * @return int, the number of sources, and so of levels each step takes
+     */
+    public int sourceCount() {
+        return sources.length;
+    }
+
+    /**
+     * Moves to the next step.
+     *
+     * @param levels of the water at each source, in the order of the sources
+     * @return Step, the flooding after the step
+     */
+    public Step step(double[] levels) {
+        if (levels.length != sources.length)
+            throw new IllegalArgumentException("Expected " + sources.length + " levels, got " + levels.length + ".");
+        long start = System.nanoTime();
+
+        /* One range per wet source, sorted by where they start. */
+        var floodedBySource = new int[sources.length];
+        var packed = new long[sources.length];
+        int wet = 0;
+        for (int i = 0; i < sources.length; i++) {
+            long range = basins.floodedRange(sources[i], levels[i]);
+            floodedBySource[i] = (int) range - (int) (range >>> 32);
+            if (floodedBySource[i] > 0)
+                packed[wet++] = range;
+        }
+        Arrays.sort(packed, 0, wet);
+
+        /* Ranges are nested or disjoint, so a range that starts inside the last one is part of it. */
+        var merged = new int[2 * wet];
+        int count = 0;
+        for (int i = 0; i < wet; i++) {
+            int first = (int) (packed[i] >>> 32);
+            int end = (int) packed[i];
+            if (count > 0 && first < merged[count - 1]) {
+                merged[count - 1] = Math.max(merged[count - 1], end);
+            } else {
+                merged[count++] = first;
+                merged[count++] = end;
+            }
+        }
+        merged = Arrays.copyOf(merged, count);
+
+        var step = update(ranges, merged, floodedBySource);
+        ranges = merged;
+        Metrics.histogram("tide.step").recordSince(start);
+        return step;
+    }
+
+    /**
+     * Runs through a time series of levels.
+     *
+     * @param levels of the water, levels[source][time], the same number of steps for every source
+     * @param listener told about each step, or null
+     * @return Step[], the state after each step
+     */
+    public Step[] run(double[][] levels, StepListener listener) {
+        if (levels.length != sources.length)
+            throw new IllegalArgumentException("Expected " + sources.length + " series, got " + levels.length + ".");
+        int steps = levels.length == 0 ? 0 : levels[0].length;
+        for (double[] series : levels) {
+            if (series.length != steps)
+                throw new IllegalArgumentException("Every source needs " + steps + " levels.");
+        }
+
+        var result = new Step[steps];
+        var now = new double[sources.length];
+        for (int time = 0; time < steps; time++) {
+            for (int i = 0; i < sources.length; i++) {
+                now[i] = levels[i][time];
+            }
+            result[time] = step(now);
+            if (listener != null)
+                listener.onStep(time, result[time], flooded);
+        }
+        return result;
+    }
+
+    /**
+     * @return FloodMask, the cells flooded after the last step (a copy)
+     */
+    public FloodMask floodedMask() {
+        return flooded.copy();
+    }
+
+    /**
+     * @return int, the number of cells above water after the last step
+     */
+    public int totalVisibleLand() {
+        return land;
+    }
+
+    /**
+     * Counts the islands after the last step. This labels the whole terrain,
+     * so it costs far more than a step.
+     *
+     * @return int, the number of islands
+     */
+    public int numOfIslands() {
+        return TiledIslandCounter.count(flooded, TiledTerrain.DEFAULT_TILE_SIZE,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * A tide at one source: a sine wave with the principal lunar period.
+     *
+     * @param mean water level
+     * @param amplitude from mean to high tide
+     * @param phaseHours how long after the start high tide comes, e.g. later up an inlet
+     * @param steps number of levels
+     * @param minutesPerStep time between levels
+     * @return double[], the level at each step
+     */
+    public static double[] tide(double mean, double amplitude, double phaseHours, int steps, double minutesPerStep) {
+        var levels = new double[steps];
+        for (int i = 0; i < steps; i++) {
+            double hours = i * minutesPerStep / 60;
+            levels[i] = mean + amplitude * Math.cos(2 * Math.PI * (hours - phaseHours) / M2_PERIOD_HOURS);
+        }
+        return levels;
+    }
+
+    /* Floods and dries the cells in the difference between the old and new ranges. */
+    private Step update(int[] before, int[] after, int[] floodedBySource) {
+        /* Between consecutive boundaries of either set, each cell is in the same ranges. */
+        var bounds = new int[before.length + after.length];
+        System.arraycopy(before, 0, bounds, 0, before.length);
+        System.arraycopy(after, 0, bounds, before.length, after.length);
+        Arrays.sort(bounds);
+
+        int newlyFlooded = 0, newlyDry = 0;
+        int b = 0, a = 0;
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            int from = bounds[i], to = bounds[i + 1];
+            if (from == to)
+                continue;
+
+            while (b < before.length && before[b + 1] <= from) {
+                b += 2;
+            }
+            while (a < after.length && after[a + 1] <= from) {
+                a += 2;
+            }
+            boolean was = b < before.length && before[b] <= from;
+            boolean now = a < after.length && after[a] <= from;
+            if (was == now)
+                continue;
+
+            for (int position = from; position < to; position++) {
+                int cell = basins.cellAt(position);
+                if (now)
+                    flooded.set(cell / cols, cell % cols);
+                else
+                    flooded.clear(cell / cols, cell % cols);
+            }
+            if (now)
+                newlyFlooded += to - from;
+            else
+                newlyDry += to - from;
+        }
+
+        land += newlyDry - newlyFlooded;
+        return new Step(land, newlyFlooded, newlyDry, floodedBySource);
+    }
+}
@@ -0,0 +1,260 @@
+package tides;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class counts islands by splitting the grid into square tiles, labelling 
+ * the islands in each tile independently on a pool of threads, and then 
+ * joining labels that touch across tile seams.
+ * 
+ * Each tile keeps only the labels along its four edges once it is done, so the 
+ * seam merge runs a small union-find over the per-tile island labels rather 
+ * than over every cell. The count is the same as a union-find over the whole 
+ * grid: land cells are joined in all 8 directions, including diagonally across 
+ * the corners where four tiles meet.
+ * 
+ * Tiles are labelled on one pool of daemon threads, one per processor, shared 
+ * by every count; counts are asked for once per query or simulation step, and 
+ * starting and stopping threads each time would cost more than small counts.
+ */
+public final class TiledIslandCounter {
+    private TiledIslandCounter() {
+    }
+
+    /* The shared pool, started the first time a count runs on more than one thread. */
+    private static final class Pool {
+        static final ExecutorService THREADS = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), runnable -> {
+                    var thread = new Thread(runnable, "island-tiles");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /* What the seam merge needs to know about one labelled tile. */
+    private static final class TileLabels {
+        int islands;   // islands found inside the tile alone
+        int[] top;     // label of each cell in the tile's first row, or -1 for water
+        int[] bottom;  // ... last row
+        int[] left;    // ... first column
+        int[] right;   // ... last column
+    }
+
+    /**
+     * Counts the islands of the land (cells not flooded) in a flood mask.
+     * 
+     * @param flooded cells of the grid
+     * @param tileSize width and height of each tile in cells
+     * @param threads most tiles to label at once; they run on the shared pool, 
+     *                so no more than there are processors run at a time
+     * @return int, representing the total number of islands
+     */
+    public static int count(FloodMask flooded, int tileSize, int threads) {
+        if (tileSize <= 0 || threads <= 0)
+            throw new IllegalArgumentException("Tile size and thread count must be positive.");
+
+        int tileRows = (flooded.rows() + tileSize - 1) / tileSize;
+        int tileCols = (flooded.cols() + tileSize - 1) / tileSize;
+        var labels = new TileLabels[tileRows * tileCols];
+
+        /* Label every tile. */
+        if (threads == 1 || labels.length == 1) {
+            for (int tile = 0; tile < labels.length; tile++) {
+                labels[tile] = labelTile(flooded, tileSize, tile / tileCols, tile % tileCols);
+            }
+        } else {
+            /* One task per thread, each taking every threads-th tile. */
+            int tasks = Math.min(threads, labels.length);
+            var work = new ArrayList<Callable<Void>>();
+            for (int task = 0; task < tasks; task++) {
+                int first = task;
+                work.add(() -> {
+                    for (int tile = first; tile < labels.length; tile += tasks) {
+                        labels[tile] = labelTile(flooded, tileSize, tile / tileCols, tile % tileCols);
+                    }
+                    return null;
+                });
+            }
+
+            try {
+                for (Future<Void> result : Pool.THREADS.invokeAll(work)) {
+                    result.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while counting islands.", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Error labelling a tile.", e.getCause());
+            }
+        }
+
+        /* Give every tile's labels a range of ids in the boundary union-find. */
+        var offsets = new int[labels.length];
+        int total = 0;
+        for (int tile = 0; tile < labels.length; tile++) {
+            offsets[tile] = total;
+            total += labels[tile].islands;
+        }
+
+        var parent = new int[total];
+        for (int i = 0; i < total; i++) {
+            parent[i] = i;
+        }
+
+        /* Join labels across each seam. Every successful join removes one island. */
+        int joins = 0;
+        for (int tileRow = 0; tileRow < tileRows; tileRow++) {
+            for (int tileCol = 0; tileCol < tileCols; tileCol++) {
+                int tile = tileRow * tileCols + tileCol;
+                TileLabels here = labels[tile];
+
+                if (tileCol + 1 < tileCols) {
+                    int east = tile + 1;
+                    joins += joinEdges(parent, here.right, offsets[tile], labels[east].left, offsets[east]);
+                }
+                if (tileRow + 1 < tileRows) {
+                    int south = tile + tileCols;
+                    TileLabels below = labels[south];
+                    joins += joinEdges(parent, here.bottom, offsets[tile], below.top, offsets[south]);
+
+                    /* Diagonal neighbors across the corners shared by four tiles. */
+                    if (tileCol + 1 < tileCols) {
+                        int southEast = south + 1;
+                        joins += join(parent, here.bottom, here.bottom.length - 1, offsets[tile],
+                                labels[southEast].top, 0, offsets[southEast]);
+                    }
+                    if (tileCol > 0) {
+                        int southWest = south - 1;
+                        TileLabels belowLeft = labels[southWest];
+                        joins += join(parent, here.bottom, 0, offsets[tile],
+                                belowLeft.top, belowLeft.top.length - 1, offsets[southWest]);
+                    }
+                }
+            }
+        }
+        return total - joins;
+    }
+
+    /* Joins labels along two facing edges, where each cell touches up to 3 cells opposite. */
+    private static int joinEdges(int[] parent, int[] edge, int offset, int[] opposite, int oppositeOffset) {
+        int joins = 0;
+        for (int i = 0; i < edge.length; i++) {
+            if (edge[i] < 0)
+                continue;
+            for (int j = Math.max(0, i - 1); j <= Math.min(opposite.length - 1, i + 1); j++) {
+                joins += join(parent, edge, i, offset, opposite, j, oppositeOffset);
+            }
+        }
+        return joins;
+    }
+
+    /* Joins the labels of two edge cells if both are land. Returns 1 if two islands became one. */
+    private static int join(int[] parent, int[] edge, int i, int offset, int[] opposite, int j, int oppositeOffset) {
+        if (edge[i] < 0 || opposite[j] < 0)
+            return 0;
+
+        int root1 = find(parent, offset + edge[i]);
+        int root2 = find(parent, oppositeOffset + opposite[j]);
+        if (root1 == root2)
+            return 0;
+
+        parent[root2] = root1;
+        return 1;
+    }
+
+    /* Finds the root of a label, halving the path as it goes. */
+    private static int find(int[] parent, int label) {
+        while (parent[label] != label) {
+            parent[label] = parent[parent[label]];
+            label = parent[label];
+        }
+        return label;
+    }
+
+    /*
+     * Labels the islands inside one tile with a single scan: each land cell 
+     * takes a label from a land neighbor above or to its left, or a new label if 
+     * it has none, and labels that turn out to touch are joined. The edge cells 
+     * are then given compact labels 0..islands-1 for the seam merge.
+     */
+    private static TileLabels labelTile(FloodMask flooded, int tileSize, int tileRow, int tileCol) {
+        int firstRow = tileRow * tileSize;
+        int firstCol = tileCol * tileSize;
+        int height = Math.min(tileSize, flooded.rows() - firstRow);
+        int width = Math.min(tileSize, flooded.cols() - firstCol);
+
+        var cellLabels = new int[height * width]; // 0 means water
+        var parent = new int[height * width + 1];
+        int labels = 0;
+        int joins = 0;
+
+        for (int r = 0; r < height; r++) {
+            for (int c = 0; c < width; c++) {
+                if (flooded.get(firstRow + r, firstCol + c))
+                    continue;
+
+                int label = 0;
+                for (int n = 0; n < 4; n++) {
+                    /* West, north-west, north and north-east. */
+                    int nr = n == 0 ? r : r - 1;
+                    int nc = n == 0 ? c - 1 : c + n - 2;
+                    if (nr < 0 || nc < 0 || nc >= width)
+                        continue;
+
+                    int neighbor = cellLabels[nr * width + nc];
+                    if (neighbor == 0)
+                        continue;
+                    if (label == 0) {
+                        label = neighbor;
+                        continue;
+                    }
+
+                    int root1 = find(parent, label);
+                    int root2 = find(parent, neighbor);
+                    if (root1 != root2) {
+                        parent[root2] = root1;
+                        joins++;
+                    }
+                }
+
+                if (label == 0) {
+                    label = ++labels;
+                    parent[label] = label;
+                }
+                cellLabels[r * width + c] = label;
+            }
+        }
+
+        /* Number the roots 0..islands-1, in the order the edges reach them. */
+        var compact = new int[labels + 1];
+        Arrays.fill(compact, -1);
+        var next = new int[1];
+
+        var result = new TileLabels();
+        result.islands = labels - joins;
+        result.top = new int[width];
+        result.bottom = new int[width];
+        result.left = new int[height];
+        result.right = new int[height];
+        for (int c = 0; c < width; c++) {
+            result.top[c] = compactLabel(cellLabels[c], parent, compact, next);
+            result.bottom[c] = compactLabel(cellLabels[(height - 1) * width + c], parent, compact, next);
+        }
+        for (int r = 0; r < height; r++) {
+            result.left[r] = compactLabel(cellLabels[r * width], parent, compact, next);
+            result.right[r] = compactLabel(cellLabels[r * width + width - 1], parent, compact, next);
+        }
+        return result;
+    }
+
+    private static int compactLabel(int label, int[] parent, int[] compact, int[] next) {
+        if (label == 0)
+            return -1;
+
+        int root = find(parent, label);
+        if (compact[root] < 0)
+            compact[root] = next[0]++;
+        return compact[root];
+    }
+}
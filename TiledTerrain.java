@@ -0,0 +1,367 @@
+package tides;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * This class holds a terrain on disk as fixed-size square tiles of heights.
+ * 
+ * The file is memory-mapped in a few large segments, so its pages are read in 
+ * by the operating system only when touched and live outside the Java heap. 
+ * Tiles being worked on are copied into a bounded cache of heap arrays; the 
+ * least recently used tile is dropped when the cache is full. Each tile's 
+ * cells are stored together, so work on a small area of the grid touches few 
+ * pages, and grids far larger than the heap can be flooded and drawn.
+ * 
+ * File layout (big-endian):
+ *  - int magic, int version, int rows, int cols, int tileSize, int numSources
+ *  - numSources pairs of (int row, int col)
+ *  - padding up to DATA_ALIGNMENT
+ *  - tiles in row-major tile order, each tileSize * tileSize doubles stored 
+ *    row-major. Tiles on the right and bottom edges are padded with zeros.
+ */
+public final class TiledTerrain implements HeightGrid, Closeable {
+    public static final int DEFAULT_TILE_SIZE = 256;
+    public static final int DEFAULT_CACHE_TILES = 128;
+
+    private static final int MAGIC = 0x54494C45; // "TILE"
+    private static final int VERSION = 1;
+    private static final int DATA_ALIGNMENT = 4096;
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+    private final FileChannel channel;
+    private final int rows;
+    private final int cols;
+    private final int tileSize;
+    private final int tileCols;
+    private final long dataOffset;
+    private final GridLocation[] sources;
+
+    /* Each segment maps this many whole bands (rows of tiles). */
+    private final int bandsPerSegment;
+
+    /* Mapped segments of the file, mapped the first time they're needed. Guarded by "this". */
+    private final DoubleBuffer[] segments;
+
+    /* Tiles copied onto the heap, in least-recently-used order. Guarded by "this". */
+    private final LinkedHashMap<Integer, double[]> tiles;
+
+    /* The tile most recently read, so scans within a tile skip the cache lookup. */
+    private volatile CachedTile lastTile;
+
+    private static final class CachedTile {
+        final int key;
+        final double[] heights;
+
+        CachedTile(int key, double[] heights) {
+            this.key = key;
+            this.heights = heights;
+        }
+    }
+
+    private TiledTerrain(FileChannel channel, int rows, int cols, int tileSize, GridLocation[] sources,
+            long dataOffset, int cacheTiles) {
+        this.channel = channel;
+        this.rows = rows;
+        this.cols = cols;
+        this.tileSize = tileSize;
+        this.tileCols = (cols + tileSize - 1) / tileSize;
+        this.sources = sources;
+        this.dataOffset = dataOffset;
+        this.bandsPerSegment = (int) Math.max(1, MAX_SEGMENT_BYTES / bandBytes(cols, tileSize));
+
+        int bands = (rows + tileSize - 1) / tileSize;
+        this.segments = new DoubleBuffer[(bands + bandsPerSegment - 1) / bandsPerSegment];
+        this.tiles = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, double[]> eldest) {
+                return size() > cacheTiles;
+            }
+        };
+    }
+
+    /**
+     * Opens a tiled terrain file.
+     * 
+     * @param file written by a TiledTerrain.Writer
+     * @param cacheTiles the most tiles to keep on the heap at once
+     * @return TiledTerrain, reading from that file
+     * @throws IOException if the file can't be read or isn't a tiled terrain
+     */
+    public static TiledTerrain open(File file, int cacheTiles) throws IOException {
+        if (cacheTiles < 1)
+            throw new IllegalArgumentException("Tile cache must hold at least one tile.");
+
+        var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            var header = ByteBuffer.allocate(24);
+            readFully(channel, header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION)
+                throw new IOException("Not a tiled terrain: " + file);
+
+            int rows = header.getInt();
+            int cols = header.getInt();
+            int tileSize = header.getInt();
+            int numSources = header.getInt();
+            if (rows <= 0 || cols <= 0 || tileSize <= 0 || numSources < 0)
+                throw new IOException("Malformed tiled terrain: " + file);
+            if (bandBytes(cols, tileSize) > Integer.MAX_VALUE)
+                throw new IOException("Tiled terrain is too wide to map: " + file);
+
+            var sourceBytes = ByteBuffer.allocate(8 * numSources);
+            readFully(channel, sourceBytes, 24);
+            sourceBytes.flip();
+            var sources = new GridLocation[numSources];
+            for (int i = 0; i < numSources; i++) {
+                sources[i] = new GridLocation(sourceBytes.getInt(), sourceBytes.getInt());
+            }
+
+            long dataOffset = dataOffset(numSources);
+            long expected = dataOffset + tileBytes(tileSize) * tileCount(rows, cols, tileSize);
+            if (channel.size() < expected)
+                throw new IOException("Tiled terrain is truncated: " + file);
+
+            return new TiledTerrain(channel, rows, cols, tileSize, sources, dataOffset, cacheTiles);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0)
+                throw new IOException("Unexpected end of file.");
+        }
+    }
+
+    private static long dataOffset(int numSources) {
+        long header = 24 + 8L * numSources;
+        return (header + DATA_ALIGNMENT - 1) / DATA_ALIGNMENT * DATA_ALIGNMENT;
+    }
+
+    private static long tileBytes(int tileSize) {
+        return 8L * tileSize * tileSize;
+    }
+
+    private static long bandBytes(int cols, int tileSize) {
+        return tileBytes(tileSize) * ((cols + tileSize - 1) / tileSize);
+    }
+
+    private static long tileCount(int rows, int cols, int tileSize) {
+        return (long) ((rows + tileSize - 1) / tileSize) * ((cols + tileSize - 1) / tileSize);
+    }
+
+    @Override
+    public int rows() {
+        return rows;
+    }
+
+    @Override
+    public int cols() {
+        return cols;
+    }
+
+    /**
+     * @return int, the width and height of each tile in cells
+     */
+    public int tileSize() {
+        return tileSize;
+    }
+
+    /**
+     * @return GridLocation[], the water sources stored with the terrain
+     */
+    public GridLocation[] sources() {
+        return sources.clone();
+    }
+
+    @Override
+    public double height(int row, int col) {
+        if (row < 0 || row >= rows || col < 0 || col >= cols)
+            throw new IndexOutOfBoundsException("Cell " + row + ", " + col + " is outside the terrain.");
+
+        int key = (row / tileSize) * tileCols + col / tileSize;
+        CachedTile tile = lastTile;
+        if (tile == null || tile.key != key) {
+            tile = new CachedTile(key, tile(key));
+            lastTile = tile;
+        }
+        return tile.heights[(row % tileSize) * tileSize + col % tileSize];
+    }
+
+    /* Returns the heights of the tile with the given index, copying it in if needed. */
+    private synchronized double[] tile(int key) {
+        double[] heights = tiles.get(key);
+        if (heights == null) {
+            int tileRow = key / tileCols;
+            DoubleBuffer segment = segment(tileRow / bandsPerSegment);
+            int tileCells = tileSize * tileSize;
+            int firstTile = (tileRow % bandsPerSegment) * tileCols + key % tileCols;
+
+            heights = new double[tileCells];
+            segment.get(firstTile * tileCells, heights);
+            tiles.put(key, heights);
+        }
+        return heights;
+    }
+
+    /* Returns the given segment of the file, mapping it if needed. Caller holds the lock. */
+    private DoubleBuffer segment(int index) {
+        if (segments[index] == null) {
+            long bandBytes = bandBytes(cols, tileSize);
+            int bands = (rows + tileSize - 1) / tileSize;
+            int segmentBands = Math.min(bandsPerSegment, bands - index * bandsPerSegment);
+            try {
+                long offset = dataOffset + (long) index * bandsPerSegment * bandBytes;
+                segments[index] = channel.map(FileChannel.MapMode.READ_ONLY, offset, segmentBands * bandBytes)
+                        .asDoubleBuffer();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Error mapping terrain segment " + index + ".", e);
+            }
+        }
+        return segments[index];
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            tiles.clear();
+            Arrays.fill(segments, null);
+        }
+        lastTile = null;
+        channel.close();
+    }
+
+    /**
+     * Writes a tiled terrain one row at a time, so a terrain can be converted 
+     * while holding only one band of tile rows in memory.
+     */
+    public static final class Writer implements Closeable {
+        private final FileChannel channel;
+        private final int rows;
+        private final int cols;
+        private final int tileSize;
+        private final int tileCols;
+        private final long dataOffset;
+
+        /* The rows of the band of tiles being filled. */
+        private final double[][] band;
+        private int nextRow = 0;
+
+        /**
+         * @param file to write; it is replaced if it exists
+         * @param rows of the terrain
+         * @param cols of the terrain
+         * @param sources of water on the terrain
+         * @param tileSize width and height of each tile in cells
+         * @throws IOException if the file can't be written
+         */
+        public Writer(File file, int rows, int cols, GridLocation[] sources, int tileSize) throws IOException {
+            if (rows <= 0 || cols <= 0 || tileSize <= 0)
+                throw new IllegalArgumentException("Invalid terrain size " + rows + " x " + cols + ".");
+
+            this.rows = rows;
+            this.cols = cols;
+            this.tileSize = tileSize;
+            this.tileCols = (cols + tileSize - 1) / tileSize;
+            this.dataOffset = dataOffset(sources.length);
+            this.band = new double[Math.min(tileSize, rows)][cols];
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+
+            var header = ByteBuffer.allocate(24 + 8 * sources.length);
+            header.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(cols).putInt(tileSize).putInt(sources.length);
+            for (GridLocation source : sources) {
+                header.putInt(source.row).putInt(source.col);
+            }
+            header.flip();
+            writeFully(header, 0);
+        }
+
+        /**
+         * Appends the next row of heights.
+         * 
+         * @param heights of the row, one per column
+         * @throws IOException if the row can't be written
+         */
+        public void writeRow(double[] heights) throws IOException {
+            if (heights.length != cols)
+                throw new IllegalArgumentException("Expected " + cols + " heights, got " + heights.length + ".");
+            if (nextRow >= rows)
+                throw new IllegalStateException("All " + rows + " rows have already been written.");
+
+            System.arraycopy(heights, 0, band[nextRow % tileSize], 0, cols);
+            nextRow++;
+            if (nextRow % tileSize == 0 || nextRow == rows)
+                flushBand();
+        }
+
+        /* Writes out every tile of the band that was just filled. */
+        private void flushBand() throws IOException {
+            int tileRow = (nextRow - 1) / tileSize;
+            int bandRows = nextRow - tileRow * tileSize;
+            var buffer = ByteBuffer.allocate((int) tileBytes(tileSize));
+
+            for (int tileCol = 0; tileCol < tileCols; tileCol++) {
+                buffer.clear();
+                DoubleBuffer doubles = buffer.asDoubleBuffer();
+                int firstCol = tileCol * tileSize;
+                int width = Math.min(tileSize, cols - firstCol);
+                for (int r = 0; r < tileSize; r++) {
+                    for (int c = 0; c < tileSize; c++) {
+                        doubles.put(r < bandRows && c < width ? band[r][firstCol + c] : 0.0);
+                    }
+                }
+
+                long offset = dataOffset + ((long) tileRow * tileCols + tileCol) * tileBytes(tileSize);
+                writeFully(buffer, offset);
+            }
+        }
+
+        private void writeFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+        }
+
+        /**
+         * @throws IOException if fewer rows were written than the terrain has
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if (nextRow != rows)
+                    throw new IOException("Terrain ended after " + nextRow + " of " + rows + " rows.");
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Writes an in-memory grid out as a tiled terrain.
+     * 
+     * @param grid of heights to write
+     * @param sources of water on the terrain
+     * @param file to write; it is replaced if it exists
+     * @param tileSize width and height of each tile in cells
+     * @throws IOException if the file can't be written
+     */
+    public static void write(HeightGrid grid, GridLocation[] sources, File file, int tileSize) throws IOException {
+        try (var writer = new Writer(file, grid.rows(), grid.cols(), sources, tileSize)) {
+            var row = new double[grid.cols()];
+            for (int r = 0; r < grid.rows(); r++) {
+                for (int c = 0; c < row.length; c++) {
+                    row[c] = grid.height(r, c);
+                }
+                writer.writeRow(row);
+            }
+        }
+    }
+}
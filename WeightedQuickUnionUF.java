@@ -7,35 +7,45 @@ package tides;
  * Feel free to take a look at the method descriptions for a better 
  * understanding of Weighted Quick-Union.
  * 
+ * Internally each cell is a packed id, row * cols + col, so the union-find 
+ * holds two int arrays rather than a GridLocation per cell. The int methods 
+ * work on ids directly; the GridLocation methods convert at the boundary.
+ * 
  * @author Vian Miranda (Rutgers University)
  */
 public class WeightedQuickUnionUF {
 
-    // Each parent[i][j] will contain a GridLocation of its parent
-    private GridLocation[][] parent;
+    private final int cols;
+
+    // Each parent[id] will contain the id of its parent
+    private int[] parent;
 
-    // Each size[i][j] is the number of children the node has, including itself
-    private int[][] size;
+    // Each size[id] is the number of children the node has, including itself
+    private int[] size;
 
+    // How many finds and unions have run, and how many parent links the finds followed
+    private long finds = 0, unions = 0, pathSteps = 0;
 
     /**
      * Constructor for WeightedQuickUnionUF.
      * 
      * Instantiates the total number of rows and columns provided (size of the 
-     * .terrain file) and the parent and size 2d arrays.
+     * .terrain file) and the parent and size arrays.
      * 
      * @param rows of the grid provided from the .terrain file
      * @param cols of the grid provided from the .terrain file
      */
     public WeightedQuickUnionUF(int rows, int cols) {
-        parent = new GridLocation[rows][cols];
-        size = new int[rows][cols];
-
-        for (int rr = 0; rr < rows; rr++) {
-            for (int cc = 0; cc < cols; cc++) {
-                parent[rr][cc] = new GridLocation(rr, cc);
-                size[rr][cc] = 1;
-            }
+        if ((long) rows * cols > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Grid is too large: " + rows + " x " + cols);
+
+        this.cols = cols;
+        parent = new int[rows * cols];
+        size = new int[rows * cols];
+
+        for (int id = 0; id < parent.length; id++) {
+            parent[id] = id;
+            size[id] = 1;
         }
     }
     
@@ -50,14 +60,23 @@ public class WeightedQuickUnionUF {
      * @return GridLocation, parent cell
      */
     public GridLocation find(GridLocation cell) {
-        GridLocation currParent = parent[cell.row][cell.col];
+        int root = find(cell.row * cols + cell.col);
+        return new GridLocation(root / cols, root % cols);
+    }
 
-        while (cell.hashCode() != currParent.hashCode() || !cell.equals(currParent)) {
-            cell = new GridLocation(currParent.row, currParent.col);
-            currParent = parent[cell.row][cell.col];
+    /**
+     * Same as find(GridLocation), for a cell's packed id.
+     * 
+     * @param id of the cell, row * cols + col
+     * @return int, id of the root parent
+     */
+    public int find(int id) {
+        finds++;
+        while (parent[id] != id) {
+            id = parent[id];
+            pathSteps++;
         }
-
-        return currParent;
+        return id;
     }
 
     /**
@@ -77,19 +96,32 @@ public class WeightedQuickUnionUF {
      * @param cell2 location of which we want to union
      */
     public void union(GridLocation cell1, GridLocation cell2) {
-        GridLocation root1 = find(cell1);
-        GridLocation root2 = find(cell2);
-        if (root1 == root2) return;
+        union(cell1.row * cols + cell1.col, cell2.row * cols + cell2.col);
+    }
+
+    /**
+     * Same as union(GridLocation, GridLocation), for cells' packed ids.
+     * 
+     * @param id1 of a cell, row * cols + col
+     * @param id2 of a cell, row * cols + col
+     * @return boolean, true if the cells were in different sets before
+     */
+    public boolean union(int id1, int id2) {
+        unions++;
+        int root1 = find(id1);
+        int root2 = find(id2);
+        if (root1 == root2) return false;
 
         // If root1 is root of larger tree, this makes it root of smaller tree
-        if (getSize(root1) >= getSize(root2)) {
-            GridLocation temp = root1;
+        if (size[root1] >= size[root2]) {
+            int temp = root1;
             root1 = root2;
             root2 = temp;
         }
 
-        parent[root1.row][root1.col] = root2;
-        size[root2.row][root2.col] += getSize(root1);
+        parent[root1] = root2;
+        size[root2] += size[root1];
+        return true;
     }
 
     /**
@@ -97,6 +129,27 @@ public class WeightedQuickUnionUF {
      * @return int, the number of child nodes (including itself)
      */
     public int getSize(GridLocation cell) {
-        return size[cell.row][cell.col];
+        return size[cell.row * cols + cell.col];
+    }
+
+    /**
+     * @return long, the number of finds so far, including those run by union
+     */
+    public long findCount() {
+        return finds;
+    }
+
+    /**
+     * @return long, the number of unions so far
+     */
+    public long unionCount() {
+        return unions;
+    }
+
+    /**
+     * @return double, the average number of parent links a find followed
+     */
+    public double averagePathLength() {
+        return finds == 0 ? 0 : (double) pathSteps / finds;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,171 @@
+package tides;
+
+import java.util.*;
+
+/**
+ * This class answers land and flood questions about a rectangular window of
+ * a terrain, such as one borough of a city, without visiting every cell in
+ * the window.
+ *
+ * It is built from the terrain's flood levels, so water still only reaches a
+ * cell in the window along paths from the terrain's own sources, wherever
+ * they are. The grid is cut into square tiles and each tile keeps its cells'
+ * flood levels sorted. A tile wholly inside the window counts its land at any
+ * water height with one binary search; only the tiles the window's edges cut
+ * through are scanned cell by cell. A window count therefore costs about one
+ * step per tile plus the cells along the window's border.
+ *
+ * Windows are given as top, left, bottom and right (both inclusive) and are
+ * clipped to the terrain, like FloodScenario.editRectangle.
+ */
+public final class WindowIndex {
+    /* Side of the tiles, in cells. */
+    public static final int DEFAULT_TILE_SIZE = 32;
+
+    private final int rows;
+    private final int cols;
+    private final int tileSize;
+    private final int tileCols;
+    private final double[] levels;
+
+    // The sorted levels of tile t are sorted[tileStart[t]] up to sorted[tileStart[t + 1]]
+    private final int[] tileStart;
+    private final double[] sorted;
+
+    private WindowIndex(FloodLevels floodLevels, int tileSize) {
+        rows = floodLevels.rows();
+        cols = floodLevels.cols();
+        levels = floodLevels.levels();
+        this.tileSize = tileSize;
+        tileCols = (cols + tileSize - 1) / tileSize;
+        int tileRows = (rows + tileSize - 1) / tileSize;
+
+        tileStart = new int[tileRows * tileCols + 1];
+        sorted = new double[levels.length];
+        int next = 0;
+        for (int tileRow = 0; tileRow < tileRows; tileRow++) {
+            for (int tileCol = 0; tileCol < tileCols; tileCol++) {
+                int tile = tileRow * tileCols + tileCol;
+                tileStart[tile] = next;
+                int rowEnd = Math.min(rows, (tileRow + 1) * tileSize);
+                int colStart = tileCol * tileSize;
+                int colEnd = Math.min(cols, colStart + tileSize);
+                for (int row = tileRow * tileSize; row < rowEnd; row++) {
+                    System.arraycopy(levels, row * cols + colStart, sorted, next, colEnd - colStart);
+                    next += colEnd - colStart;
+                }
+                Arrays.sort(sorted, tileStart[tile], next);
+            }
+        }
+        tileStart[tileStart.length - 1] = next;
+    }
+
+    /**
+     * Builds the index with the default tile size.
+     *
+     * @param floodLevels of every cell on the terrain
+     * @return WindowIndex, the index
+     */
+    public static WindowIndex build(FloodLevels floodLevels) {
+        return build(floodLevels, DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * Builds the index. Smaller tiles make windows with ragged edges cheaper,
+     * larger tiles make huge windows cheaper.
+     *
+     * @param floodLevels of every cell on the terrain
+     * @param tileSize side of the tiles, in cells
+     * @return WindowIndex, the index
+     */
+    public static WindowIndex build(FloodLevels floodLevels, int tileSize) {
+        if (tileSize <= 0)
+            throw new IllegalArgumentException("Tile size must be positive: " + tileSize);
+        return new WindowIndex(floodLevels, tileSize);
+    }
+
+    /**
+     * Counts the cells of a window that are above water.
+     *
+     * @param height of the water
+     * @param top row of the window
+     * @param left column of the window
+     * @param bottom row of the window (inclusive)
+     * @param right column of the window (inclusive)
+     * @return int, the number of cells of land in the window
+     */
+    public int landCells(double height, int top, int left, int bottom, int right) {
+        top = Math.max(0, top);
+        left = Math.max(0, left);
+        bottom = Math.min(rows - 1, bottom);
+        right = Math.min(cols - 1, right);
+        if (top > bottom || left > right)
+            return 0;
+
+        int land = 0;
+        for (int tileRow = top / tileSize; tileRow <= bottom / tileSize; tileRow++) {
+            int tileTop = tileRow * tileSize;
+            int tileBottom = Math.min(rows, tileTop + tileSize) - 1;
+            for (int tileCol = left / tileSize; tileCol <= right / tileSize; tileCol++) {
+                int tileLeft = tileCol * tileSize;
+                int tileRight = Math.min(cols, tileLeft + tileSize) - 1;
+
+                if (top <= tileTop && tileBottom <= bottom && left <= tileLeft && tileRight <= right) {
+                    /* Whole tile: the land is everything sorted after the water height. */
+                    int tile = tileRow * tileCols + tileCol;
+                    land += tileStart[tile + 1] - upperBound(tileStart[tile], tileStart[tile + 1], height);
+                } else {
+                    /* Cut by the window's edge: count just the part inside. */
+                    int rowEnd = Math.min(bottom, tileBottom);
+                    int colStart = Math.max(left, tileLeft);
+                    int colEnd = Math.min(right, tileRight);
+                    for (int row = Math.max(top, tileTop); row <= rowEnd; row++) {
+                        for (int i = row * cols + colStart, end = row * cols + colEnd; i <= end; i++) {
+                            land += levels[i] > height ? 1 : 0;
+                        }
+                    }
+                }
+            }
+        }
+        return land;
+    }
+
+    /**
+     * Cuts the flooded cells of a window out of the whole terrain's flooding.
+     *
+     * @param height of the water
+     * @param top row of the window
+     * @param left column of the window
+     * @param bottom row of the window (inclusive)
+     * @param right column of the window (inclusive)
+     * @return FloodMask, the size of the clipped window, with cell (0, 0) at (top, left)
+     */
+    public FloodMask floodedMask(double height, int top, int left, int bottom, int right) {
+        top = Math.max(0, top);
+        left = Math.max(0, left);
+        bottom = Math.min(rows - 1, bottom);
+        right = Math.min(cols - 1, right);
+
+        var mask = new FloodMask(Math.max(0, bottom - top + 1), Math.max(0, right - left + 1));
+        for (int row = top; row <= bottom; row++) {
+            for (int col = left; col <= right; col++) {
+                if (levels[row * cols + col] <= height)
+                    mask.set(row - top, col - left);
+            }
+        }
+        return mask;
+    }
+
+    /* The first index in sorted[from, to) whose level is above height. */
+    private int upperBound(int from, int to, double height) {
+        int low = from, high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] <= height)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+}
@@ -0,0 +1,103 @@
+package tides;
+
+import jdk.incubator.vector.*;
+
+/**
+ * This class is GridKernels' loops on SIMD vectors, using the incubating
+ * Vector API: each step compares or folds a whole vector of cells (eight
+ * doubles with AVX-512, four with AVX2), and the comparisons come out as bit
+ * masks that go straight into a flood mask's words.
+ *
+ * It lives apart from the other classes because it only compiles and runs
+ * with the jdk.incubator.vector module, and GridKernels only looks it up
+ * when that module is there:
+ *
+ *   javac --add-modules jdk.incubator.vector -d bin *.java incubator/VectorKernels.java
+ *   java --add-modules jdk.incubator.vector -cp bin tides.KernelBenchmark
+ */
+final class VectorKernels implements GridKernels.Kernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    /* Longs with as many lanes as SPECIES, and for each of a word's vectors the bit each lane sets. */
+    private static final VectorSpecies<Long> BITS = VectorSpecies.of(long.class, SPECIES.vectorShape());
+    private static final LongVector[] WEIGHTS = new LongVector[64 / LANES];
+
+    static {
+        var weights = new long[LANES];
+        for (int chunk = 0; chunk < WEIGHTS.length; chunk++) {
+            for (int lane = 0; lane < LANES; lane++) {
+                weights[lane] = 1L << (chunk * LANES + lane);
+            }
+            WEIGHTS[chunk] = LongVector.fromArray(BITS, weights, 0);
+        }
+    }
+
+    @Override
+    public double[] extrema(double[][] values) {
+        double lowest = Double.POSITIVE_INFINITY;
+        double highest = Double.NEGATIVE_INFINITY;
+        for (double[] row : values) {
+            /* Fold each row into lanes and then to numbers, so no vector lives across rows. */
+            int bound = SPECIES.loopBound(row.length);
+            int i = 0;
+            if (bound > 0) {
+                var min = DoubleVector.fromArray(SPECIES, row, 0);
+                var max = min;
+                for (i = LANES; i < bound; i += LANES) {
+                    var v = DoubleVector.fromArray(SPECIES, row, i);
+                    min = min.blend(v, v.compare(VectorOperators.LT, min));
+                    max = max.blend(v, v.compare(VectorOperators.GT, max));
+                }
+                double rowMin = min.reduceLanes(VectorOperators.MIN);
+                double rowMax = max.reduceLanes(VectorOperators.MAX);
+                lowest = rowMin < lowest ? rowMin : lowest;
+                highest = rowMax > highest ? rowMax : highest;
+            }
+            for (; i < row.length; i++) {
+                lowest = row[i] < lowest ? row[i] : lowest;
+                highest = row[i] > highest ? row[i] : highest;
+            }
+        }
+        return new double[] { lowest, highest };
+    }
+
+    @Override
+    public long countAbove(double[] values, double threshold) {
+        int bound = SPECIES.loopBound(values.length);
+        long count = 0;
+        int i = 0;
+        for (; i < bound; i += LANES) {
+            count += DoubleVector.fromArray(SPECIES, values, i).compare(VectorOperators.GT, threshold).trueCount();
+        }
+        for (; i < values.length; i++) {
+            count += values[i] > threshold ? 1 : 0;
+        }
+        return count;
+    }
+
+    @Override
+    public void floodMask(double[] levels, double height, FloodMask flooded) {
+        long[] words = flooded.words();
+        int full = levels.length >>> 6;
+        for (int w = 0; w < full; w++) {
+            int base = w << 6;
+            var word = LongVector.zero(BITS);
+            for (int chunk = 0; chunk < WEIGHTS.length; chunk++) {
+                VectorMask<Double> wet = DoubleVector.fromArray(SPECIES, levels, base + chunk * LANES)
+                        .compare(VectorOperators.LE, height);
+                word = word.or(WEIGHTS[chunk].blend(0L, wet.cast(BITS).not()));
+            }
+            words[w] = word.reduceLanes(VectorOperators.OR);
+        }
+
+        if ((levels.length & 63) != 0) {
+            int base = full << 6;
+            long word = 0;
+            for (int bit = 0; base + bit < levels.length; bit++) {
+                word |= (levels[base + bit] <= height ? 1L : 0L) << bit;
+            }
+            words[full] = word;
+        }
+    }
+}